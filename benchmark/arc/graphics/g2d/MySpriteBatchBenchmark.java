@@ -0,0 +1,187 @@
+package arc.graphics.g2d;
+
+import arc.*;
+import arc.graphics.*;
+import mindustryX.features.*;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.*;
+import sun.misc.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Headless benchmark for {@link MySpriteBatch} request recording, sorting and flushing.
+ * The mesh is stubbed out, so no GPU or GL context is needed.
+ * Scores are ns/request, run with `-prof gc`(default in mindustryX.benchmark) for allocation rate.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MySpriteBatchBenchmark{
+    static final int REQUESTS = 60000;
+
+    /** layers: many z layers; textureThrash: texture switch on every sprite; additive: blending switch; runnable: Draw.run requests mixed in */
+    @Param({"layers", "textureThrash", "additive", "runnable"})
+    public String stream;
+    @Param({"radix", "parallel", "legacy"})
+    public String algorithm;
+    @Param({"true"})
+    public boolean renderSort;
+
+    private StubBatch batch;
+    private Stream ops;
+    private int[] savedZ, savedExtraZ;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception{
+        if(Core.settings == null) Core.settings = new Settings();
+        RenderExt.renderSort = renderSort;
+        RenderExt.legacyRenderSort = algorithm.equals("legacy");
+        RenderExt.multithreadRenderSort = algorithm.equals("parallel");
+
+        batch = new StubBatch();
+        ops = new Stream(stream, new Random(42));
+        //record once for sort-only benchmark
+        batch.setSort(true);
+        ops.record(batch);
+        savedZ = Arrays.copyOf(batch.requestZ, batch.numRequests);
+        savedExtraZ = Arrays.copyOf(batch.extraZ, batch.numRequests);
+        //flush the recorded requests, otherwise the first recordAndFlush measures them twice
+        batch.sortCacheEnabled = false;
+        batch.flush();
+        batch.consume();
+    }
+
+    /** record + sort + flush, the whole pipeline of one sorted section. Sort cache is disabled. */
+    @Benchmark
+    @OperationsPerInvocation(REQUESTS)
+    public int recordAndFlush(){
+        StubBatch batch = this.batch;
+        batch.sortCacheEnabled = false;
+        ops.record(batch);
+        batch.flush();
+        return batch.consume();
+    }
+
+    /** same as recordAndFlush, but the request stream is identical every frame, so sort cache always hit. */
+    @Benchmark
+    @OperationsPerInvocation(REQUESTS)
+    public int recordAndFlushCached(){
+        StubBatch batch = this.batch;
+        batch.sortCacheEnabled = true;
+        ops.record(batch);
+        batch.flush();
+        return batch.consume();
+    }
+
+    /** only sortRequests, z and extraZ are restored before each call as legacy sort overwrite them. */
+    @Benchmark
+    @OperationsPerInvocation(REQUESTS)
+    public void sortOnly(Blackhole bh){
+        StubBatch batch = this.batch;
+        batch.sortCacheEnabled = false;
+        System.arraycopy(savedZ, 0, batch.requestZ, 0, savedZ.length);
+        System.arraycopy(savedExtraZ, 0, batch.extraZ, 0, savedExtraZ.length);
+        batch.numRequests = savedZ.length;
+        batch.sortRequests();
+        bh.consume(batch.copy);
+    }
+
+    /** Batch without mesh, drawRaw only counts vertices. */
+    static class StubBatch extends MySpriteBatch{
+        int vertices;
+
+        StubBatch(){
+            super(0);
+        }
+
+        @Override
+        protected void drawRaw(Texture texture, float[] spriteVertices, int offset, int count){
+            lastTexture = texture;
+            vertices += count;
+        }
+
+        int consume(){
+            int v = vertices;
+            vertices = 0;
+            return v;
+        }
+    }
+
+    /** Pre-generated synthetic draw calls, so generating them costs nothing during measurement. */
+    static class Stream{
+        static final int KIND_SPRITE = 0, KIND_RUN = 1;
+        final float[] z = new float[REQUESTS];
+        final byte[] kind = new byte[REQUESTS];
+        final TextureRegion[] region = new TextureRegion[REQUESTS];
+        final Blending[] blending = new Blending[REQUESTS];
+        final float[] pos = new float[REQUESTS * 2];
+        final Runnable run = () -> {
+        };
+
+        Stream(String type, Random rand) throws Exception{
+            TextureRegion[] regions = new TextureRegion[16];
+            for(int i = 0; i < regions.length; i++){
+                regions[i] = new TextureRegion();
+                regions[i].texture = stubTexture();
+                regions[i].set(0f, 0f, 1f, 1f);
+            }
+            float curZ = 0;
+            int curTex = 0;
+            for(int i = 0; i < REQUESTS; i++){
+                kind[i] = KIND_SPRITE;
+                blending[i] = Blending.normal;
+                pos[i * 2] = rand.nextFloat() * 2000f;
+                pos[i * 2 + 1] = rand.nextFloat() * 2000f;
+                switch(type){
+                    case "layers" -> {
+                        //blocks then units, each object jumps between ~30 layers
+                        if(rand.nextInt(4) == 0) curZ = rand.nextInt(30) * 10f + rand.nextInt(3) * 0.1f;
+                        if(rand.nextInt(32) == 0) curTex = rand.nextInt(3);
+                    }
+                    case "textureThrash" -> {
+                        curZ = 40f;
+                        curTex = rand.nextInt(regions.length);
+                    }
+                    case "additive" -> {
+                        if(rand.nextInt(8) == 0) curZ = rand.nextInt(10) * 10f;
+                        if(rand.nextInt(3) == 0) blending[i] = Blending.additive;
+                        if(rand.nextInt(16) == 0) curTex = rand.nextInt(4);
+                    }
+                    case "runnable" -> {
+                        if(rand.nextInt(8) == 0) curZ = rand.nextInt(20) * 10f;
+                        if(rand.nextInt(10) == 0) kind[i] = KIND_RUN;
+                        if(rand.nextInt(16) == 0) curTex = rand.nextInt(4);
+                    }
+                    default -> throw new IllegalArgumentException(type);
+                }
+                z[i] = curZ;
+                region[i] = regions[curTex];
+            }
+        }
+
+        void record(MySpriteBatch batch){
+            final float[] z = this.z, pos = this.pos;
+            for(int i = 0; i < REQUESTS; i++){
+                batch.z(z[i]);
+                batch.setBlending(blending[i]);
+                if(kind[i] == KIND_RUN){
+                    batch.draw(run);
+                }else{
+                    batch.draw(region[i], pos[i * 2], pos[i * 2 + 1], 4f, 4f, 8f, 8f, 0f);
+                }
+            }
+        }
+
+        /** Textures are only identity keys in the batch, no GL handle is ever touched. */
+        static Texture stubTexture() throws Exception{
+            var field = Unsafe.class.getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            return (Texture)((Unsafe)field.get(null)).allocateInstance(Texture.class);
+        }
+    }
+}
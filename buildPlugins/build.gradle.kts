@@ -13,6 +13,7 @@ dependencies{
     implementation("org.javassist:javassist:3.30.2-GA")
     implementation("com.android.tools.smali:smali-dexlib2:3.0.5")
     implementation("de.undercouch:gradle-download-task:5.6.0")
+    implementation("me.champeau.jmh:jmh-gradle-plugin:0.7.2")
 }
 
 sourceSets.main{
@@ -0,0 +1,22 @@
+package mindustryX
+
+plugins {
+    java
+    id("me.champeau.jmh")
+}
+
+// Headless JMH benchmarks, sources in `benchmark/` of MindustryX root.
+// usage: gradle core:jmh [-PjmhInclude=MySpriteBatch]
+sourceSets.named("jmh") {
+    java.setSrcDirs(listOf(rootDir.parentFile.resolve("benchmark")))
+}
+
+jmh {
+    (project.properties["jmhInclude"] as String?)?.let { includes.add(it) }
+    fork.set(1)
+    warmupIterations.set(3)
+    iterations.set(5)
+    profilers.add("gc")
+    resultFormat.set("JSON")
+    resultsFile.set(layout.buildDirectory.file("reports/jmh/results.json"))
+}
@@ -3,6 +3,7 @@ package mindustryX
 plugins {
     id("mindustryX.patchArc")
     id("mindustryX.loaderMod")
+    id("mindustryX.benchmark")
 }
 
 tasks{
@@ -28,4 +29,13 @@ tasks{
         }
     }
     processResources.configure { dependsOn(writeMindustryX) }
+
+    // usage: gradle core:replayAnalyze --args="[--json] [--out dir] [--bucket secs] <file or dir>..."
+    register<JavaExec>("replayAnalyze") {
+        group = "mindustryX"
+        description = "Analyze .mrep replays headless, output CSV or JSON"
+        classpath = project.extensions.getByType<SourceSetContainer>()["main"].runtimeClasspath
+        mainClass.set("mindustryX.features.ReplayAnalyzer")
+        workingDir = rootDir.parentFile
+    }
 }
\ No newline at end of file
@@ -1,19 +1,60 @@
 package arc.graphics.g2d;
 
+import arc.func.*;
 import arc.graphics.*;
 import arc.math.*;
+import arc.struct.*;
+import arc.util.*;
 import mindustryX.features.*;
 
 import java.util.*;
+import java.util.concurrent.*;
 
 //MDTX: add some DebugUtil count.
 //MDTX(WayZer): renderSort
+//MDTX: radix sort over packed (z, extraZ) key, optional multithreading sort, frame-to-frame sort cache
+//MDTX: optional multithreading request recording through Recorder, merged at flushRequests
 public class MySpriteBatch extends MySpriteBatchBase{
     private static final int PRIME2 = 0xb4b82e39;
+    private static final int RADIX_BITS = 8, RADIX = 1 << RADIX_BITS, RADIX_PASSES = 64 / RADIX_BITS;
+    /** 请求数少于此值时，线程切换开销大于收益 */
+    private static final int PARALLEL_SORT_MIN = 16384;
+    /** 每个线程至少记录的下标数，少于此值时在渲染线程记录 */
+    private static final int PARALLEL_RECORD_MIN = 256;
+    /** 用于排序与{@link #recordParallel}的线程数 */
+    private static final int sortThreads = Math.min(4, OS.cores - 1);
+    private static ExecutorService sortExecutor;
+    private static final int SORT_CACHE_SIZE = 4;
     int[] extraZ = new int[10000];
+    //基数排序的临时数组，复用以避免分配
+    long[] sortKeys = new long[10000], sortKeysSwap = new long[10000];
+    int[] sortOrder = new int[10000], sortOrderSwap = new int[10000];
+    private final int[] radixCounts = new int[RADIX_PASSES * RADIX];
+    private final int[][] chunkCounts = new int[Math.max(sortThreads, 1)][RADIX_PASSES * RADIX];
+    private final Future<?>[] sortTasks = new Future<?>[Math.max(sortThreads, 1)];
+    //帧间排序缓存：画面不变时，key序列与之前某次排序完全一致，直接复用上次的排序结果
+    private final long[][] sortCacheKeys = new long[SORT_CACHE_SIZE][];
+    private final int[][] sortCacheOrder = new int[SORT_CACHE_SIZE][];
+    private final int[] sortCacheLength = new int[SORT_CACHE_SIZE];
+    private int sortCacheNext = 0;
+    /** 仅用于benchmark，测量排序本身的开销 */
+    boolean sortCacheEnabled = true;
     //增加小的delta，来保持原来的前后顺序
     int orderZ = 0;
     int hashZ = 0;//打乱hash值，来检查渲染异常
+    //等待在flushRequests中记录的任务
+    private final Seq<PendingRecord> pendingRecords = new Seq<>(false, 4);
+    private final Seq<PendingRecord> pendingPool = new Seq<>(false, 4);
+    private final Recorder[] recorders = new Recorder[Math.max(sortThreads, 1)];
+
+    public MySpriteBatch(){
+        super();
+    }
+
+    /** @param size 0 for no mesh, used by headless benchmark */
+    public MySpriteBatch(int size){
+        super(size);
+    }
 
     @Override
     protected void z(float z){
@@ -30,7 +71,8 @@ public class MySpriteBatch extends MySpriteBatchBase{
 
     @Override
     protected void flushRequests(){
-        DebugUtil.lastVertices += requestVertOffset / 6;
+        if(!pendingRecords.isEmpty()) runPendingRecords();
+        DebugUtil.lastVertices += requestVertOffset / VERTEX_SIZE + requestCompactOffset / COMPACT_VERTEX_SIZE;
         DebugUtil.lastDrawRequests += numRequests;
         super.flushRequests();
     }
@@ -65,12 +107,446 @@ public class MySpriteBatch extends MySpriteBatchBase{
         }
     }
 
+    /** @return 当前是否可以使用{@link #recordParallel}，即已开启多线程记录且正在排序 */
+    public boolean canRecordParallel(){
+        return RenderExt.multithreadRenderRecord && sort && !flushing;
+    }
+
+    /**
+     * 提交并行记录的任务，在下次flushRequests排序前执行并合并。
+     * 调用时的z、颜色、混合色与混合模式作为每个下标的初始状态，因此结果与分段方式无关，排序结果确定。
+     * 需先检查{@link #canRecordParallel()}。
+     */
+    public void recordParallel(ParallelRecord task){
+        if(!sort || flushing) throw new IllegalStateException("Parallel recording requires sorting to be enabled.");
+        PendingRecord pending = pendingPool.isEmpty() ? new PendingRecord() : pendingPool.pop();
+        pending.task = task;
+        pending.z = z;
+        pending.color = colorPacked;
+        pending.mixColor = mixColorPacked;
+        pending.blending = blending;
+        pendingRecords.add(pending);
+    }
+
+    private void runPendingRecords(){
+        for(int t = 0; t < recorders.length; t++){
+            if(recorders[t] == null) recorders[t] = new Recorder();
+            recorders[t].vertexOffset = 0;
+        }
+        int recorded = 0;
+        for(PendingRecord pending : pendingRecords){
+            final ParallelRecord task = pending.task;
+            final int size = task.size();
+            final int threads = Math.max(1, Math.min(sortThreads, size / PARALLEL_RECORD_MIN));
+            final int chunk = (size + threads - 1) / threads;
+            for(int t = 0; t < threads; t++) recorders[t].begin(pending, hashZ);
+            Intc record = t -> {
+                Recorder recorder = recorders[t];
+                for(int i = t * chunk, end = Math.min(size, i + chunk); i < end; i++){
+                    recorder.reset();
+                    task.record(recorder, i);
+                }
+            };
+            if(threads > 1) parallel(threads, record);
+            else record.get(0);
+            //按分段顺序合并，与单线程依次记录的结果一致
+            for(int t = 0; t < threads; t++) recorded += merge(recorders[t]);
+            task.end();
+            pending.task = null;
+            pending.blending = null;
+            pendingPool.add(pending);
+        }
+        pendingRecords.clear();
+        DebugUtil.lastVertices += recorded / VERTEX_SIZE;
+    }
+
+    /** @return 合并的float数 */
+    private int merge(Recorder recorder){
+        int floats = 0;
+        for(int i = 0; i < recorder.size; i++){
+            if(numRequests >= requests.length) expandRequests();
+            final DrawRequest req = requests[numRequests];
+            req.vertices = recorder.vertices;
+            req.verticesOffset = recorder.offsets[i];
+            req.verticesLength = recorder.lengths[i];
+            req.compact = false;
+            req.texture = recorder.textures[i];
+            req.blending = recorder.blendings[i];
+            req.run = null;
+            requestZ[numRequests] = recorder.zs[i];
+            extraZ[numRequests] = recorder.extraZs[i];
+            numRequests++;
+            floats += recorder.lengths[i];
+            recorder.textures[i] = null;
+            recorder.blendings[i] = null;
+        }
+        recorder.size = 0;
+        return floats;
+    }
+
+    /** 在flushRequests时并行执行的记录任务 */
+    public static abstract class ParallelRecord{
+        /** 在flushRequests时调用一次，之后按下标分段记录 */
+        public abstract int size();
+
+        /** 在工作线程调用，只能使用recorder绘制，不能使用Draw、Lines等全局状态 */
+        public abstract void record(Recorder recorder, int index);
+
+        /** 全部记录并合并后在渲染线程调用 */
+        public void end(){
+        }
+    }
+
+    private static class PendingRecord{
+        ParallelRecord task;
+        float z, color, mixColor;
+        Blending blending;
+    }
+
+    /**
+     * 一个线程的绘制请求与顶点。只支持贴图，状态(z、颜色、混合模式)与batch独立，每个下标开始时恢复为提交时的状态。
+     * 顶点留在这里不再复制，flushRequests时直接读取；请求的extraZ与batch的计算方式一致。
+     */
+    public static class Recorder{
+        private float z0, color0, mixColor0;
+        private Blending blending0;
+        private int hashZ;
+
+        private float z;
+        private int intZ, orderZ;
+        private float colorPacked, mixColorPacked;
+        private Blending blending;
+        private final float[] corners = new float[8];
+
+        float[] vertices = new float[SPRITE_SIZE * 256];
+        int vertexOffset;
+        int size;
+        Texture[] textures = new Texture[64];
+        Blending[] blendings = new Blending[64];
+        int[] zs = new int[64], extraZs = new int[64], offsets = new int[64], lengths = new int[64];
+
+        void begin(PendingRecord pending, int hashZ){
+            z0 = pending.z;
+            color0 = pending.color;
+            mixColor0 = pending.mixColor;
+            blending0 = pending.blending;
+            this.hashZ = hashZ;
+        }
+
+        void reset(){
+            z = z0;
+            intZ = Float.floatToRawIntBits(z0 + 16f);
+            orderZ = 0;
+            colorPacked = color0;
+            mixColorPacked = mixColor0;
+            blending = blending0;
+        }
+
+        public void z(float z){
+            orderZ = 0;
+            if(this.z == z) return;
+            this.z = z;
+            intZ = Float.floatToRawIntBits(z + 16f);
+        }
+
+        public void color(Color color){
+            colorPacked = color.toFloatBits();
+        }
+
+        public void color(Color color, float alpha){
+            colorPacked = Color.toFloatBits(color.r, color.g, color.b, alpha);
+        }
+
+        public void mixColor(Color color){
+            mixColorPacked = color.toFloatBits();
+        }
+
+        public void blending(Blending blending){
+            this.blending = blending;
+        }
+
+        /** 与Draw.rect相同，(x, y)为中心 */
+        public void rect(TextureRegion region, float x, float y, float width, float height){
+            rect(region, x, y, width, height, 0f);
+        }
+
+        public void rect(TextureRegion region, float x, float y, float width, float height, float rotation){
+            if(vertexOffset + SPRITE_SIZE > vertices.length) vertices = Arrays.copyOf(vertices, vertices.length << 1);
+            int pos = vertexOffset;
+            vertexOffset += SPRITE_SIZE;
+            putSprite(vertices, pos, region, corners(corners, x - width / 2f, y - height / 2f, width / 2f, height / 2f, width, height, rotation), colorPacked, mixColorPacked);
+            add(region.texture, pos);
+        }
+
+        private void add(Texture texture, int offset){
+            int h = texture.hashCode() + hashZ;
+            int extra = ((orderZ++) << 16) | (h & 0xfffc) | (blending == Blending.disabled ? 2 : 0) | (blending == Blending.additive ? 1 : 0);
+            int n = size;
+            //与MySpriteBatch.draw相同：合并到上一个请求时，extraZ使用最新的orderZ
+            if(n > 0 && textures[n - 1] == texture && blendings[n - 1] == blending && zs[n - 1] == intZ && offsets[n - 1] + lengths[n - 1] == offset){
+                lengths[n - 1] += SPRITE_SIZE;
+                extraZs[n - 1] = extra;
+                return;
+            }
+            if(n >= textures.length){
+                int len = n << 1;
+                textures = Arrays.copyOf(textures, len);
+                blendings = Arrays.copyOf(blendings, len);
+                zs = Arrays.copyOf(zs, len);
+                extraZs = Arrays.copyOf(extraZs, len);
+                offsets = Arrays.copyOf(offsets, len);
+                lengths = Arrays.copyOf(lengths, len);
+            }
+            textures[n] = texture;
+            blendings[n] = blending;
+            zs[n] = intZ;
+            extraZs[n] = extra;
+            offsets[n] = offset;
+            lengths[n] = SPRITE_SIZE;
+            size++;
+        }
+    }
+
     @Override
     protected void sortRequests(){
+        if(copy.length < requests.length) copy = new DrawRequest[requests.length];
+        if(RenderExt.renderSort){
+            hashZ = DebugUtil.renderDebug ? Float.floatToIntBits((float)Math.random()) : 0;
+        }
+        if(RenderExt.legacyRenderSort){
+            sortRequestsLegacy();
+            return;
+        }
+
+        int numRequests = this.numRequests;
+        if(sortKeys.length < numRequests){
+            int size = requests.length;
+            sortKeys = new long[size];
+            sortKeysSwap = new long[size];
+            sortOrder = new int[size];
+            sortOrderSwap = new int[size];
+        }
+        final boolean parallel = RenderExt.multithreadRenderSort && sortThreads > 1 && numRequests >= PARALLEL_SORT_MIN;
+        if(parallel) buildKeysParallel(numRequests);
+        else buildKeys(numRequests);
+
+        final int[] order;
+        int hit = sortCacheEnabled ? findSortCache(sortKeys, numRequests) : -1;
+        if(hit != -1){
+            DebugUtil.sortCacheHit++;
+            order = sortCacheOrder[hit];
+        }else if(!sortCacheEnabled){
+            order = parallel ? radixSortParallel(numRequests) : radixSort(numRequests);
+        }else{
+            DebugUtil.sortCacheMiss++;
+            int slot = saveSortCacheKeys(sortKeys, numRequests);
+            order = parallel ? radixSortParallel(numRequests) : radixSort(numRequests);
+            System.arraycopy(order, 0, sortCacheOrder[slot], 0, numRequests);
+            sortCacheLength[slot] = numRequests;
+        }
+
+        final DrawRequest[] items = requests, dest = copy;
+        if(parallel){
+            final int chunk = (numRequests + sortThreads - 1) / sortThreads;
+            parallel(sortThreads, t -> {
+                for(int i = t * chunk, end = Math.min(numRequests, i + chunk); i < end; i++){
+                    dest[i] = items[order[i]];
+                }
+            });
+        }else{
+            for(int i = 0; i < numRequests; i++){
+                dest[i] = items[order[i]];
+            }
+        }
+    }
+
+    /** 高32位为z，低32位为extraZ；翻转符号位，使无符号比较等价于原来的有符号比较 */
+    private void buildKeys(int len){
+        final int[] itemZ = this.requestZ, extraZ = this.extraZ;
+        final long[] keys = this.sortKeys;
+        if(RenderExt.renderSort){
+            for(int i = 0; i < len; i++){
+                keys[i] = ((long)(itemZ[i] ^ Integer.MIN_VALUE) << 32) | ((extraZ[i] ^ Integer.MIN_VALUE) & 0xffffffffL);
+            }
+        }else{
+            for(int i = 0; i < len; i++){
+                keys[i] = (long)(itemZ[i] ^ Integer.MIN_VALUE) << 32;
+            }
+        }
+    }
+
+    /** @return 与keys完全一致的缓存下标，未命中返回-1 */
+    private int findSortCache(long[] keys, int len){
+        outer:
+        for(int slot = 0; slot < SORT_CACHE_SIZE; slot++){
+            if(sortCacheLength[slot] != len) continue;
+            final long[] cached = sortCacheKeys[slot];
+            for(int i = 0; i < len; i++){
+                if(cached[i] != keys[i]) continue outer;
+            }
+            return slot;
+        }
+        return -1;
+    }
+
+    /** 排序前保存keys，排序完成后写入order与长度，该缓存才生效 */
+    private int saveSortCacheKeys(long[] keys, int len){
+        int slot = sortCacheNext;
+        sortCacheNext = (slot + 1) % SORT_CACHE_SIZE;
+        if(sortCacheKeys[slot] == null || sortCacheKeys[slot].length < len){
+            sortCacheKeys[slot] = new long[keys.length];
+            sortCacheOrder[slot] = new int[keys.length];
+        }
+        System.arraycopy(keys, 0, sortCacheKeys[slot], 0, len);
+        sortCacheLength[slot] = -1;
+        return slot;
+    }
+
+    /**
+     * 稳定的LSD基数排序，每轮8位。一次遍历统计所有轮次的计数，所有元素都相同的轮次直接跳过。
+     * @return order, order[i]为第i小的请求下标
+     */
+    private int[] radixSort(int len){
+        long[] keys = sortKeys, keysSwap = sortKeysSwap;
+        int[] order = sortOrder, orderSwap = sortOrderSwap;
+        final int[] counts = radixCounts;
+        Arrays.fill(counts, 0);
+        for(int i = 0; i < len; i++){
+            long key = keys[i];
+            order[i] = i;
+            for(int pass = 0, base = 0; pass < RADIX_PASSES; pass++, base += RADIX){
+                counts[base + (int)((key >>> (pass * RADIX_BITS)) & (RADIX - 1))]++;
+            }
+        }
+
+        for(int pass = 0, base = 0; pass < RADIX_PASSES; pass++, base += RADIX){
+            final int shift = pass * RADIX_BITS;
+            if(len == 0 || counts[base + (int)((keys[0] >>> shift) & (RADIX - 1))] == len) continue;
+            //counts转换为每个桶的起始位置
+            for(int b = base, end = base + RADIX, loc = 0; b < end; b++){
+                int c = counts[b];
+                counts[b] = loc;
+                loc += c;
+            }
+            for(int i = 0; i < len; i++){
+                long key = keys[i];
+                int dst = counts[base + (int)((key >>> shift) & (RADIX - 1))]++;
+                keysSwap[dst] = key;
+                orderSwap[dst] = order[i];
+            }
+            long[] tmpKeys = keys;
+            keys = keysSwap;
+            keysSwap = tmpKeys;
+            int[] tmpOrder = order;
+            order = orderSwap;
+            orderSwap = tmpOrder;
+        }
+
+        sortKeys = keys;
+        sortKeysSwap = keysSwap;
+        sortOrder = order;
+        sortOrderSwap = orderSwap;
+        return order;
+    }
+
+    /** 多线程构建keys，同时统计每段所有轮次的计数，供{@link #radixSortParallel(int)}判断需要进行的轮次 */
+    private void buildKeysParallel(int len){
+        final int chunk = (len + sortThreads - 1) / sortThreads;
+        final boolean renderSort = RenderExt.renderSort;
+        final int[] itemZ = this.requestZ, extraZ = this.extraZ;
+        parallel(sortThreads, t -> {
+            final long[] keys = sortKeys;
+            final int[] counts = chunkCounts[t];
+            Arrays.fill(counts, 0);
+            for(int i = t * chunk, end = Math.min(len, i + chunk); i < end; i++){
+                long key = (long)(itemZ[i] ^ Integer.MIN_VALUE) << 32;
+                if(renderSort) key |= (extraZ[i] ^ Integer.MIN_VALUE) & 0xffffffffL;
+                keys[i] = key;
+                for(int pass = 0, base = 0; pass < RADIX_PASSES; pass++, base += RADIX){
+                    counts[base + (int)((key >>> (pass * RADIX_BITS)) & (RADIX - 1))]++;
+                }
+            }
+        });
+    }
+
+    /**
+     * 多线程版本的基数排序。请求按下标均分为sortThreads段，每轮各段并行统计、串行求前缀和、再并行分发。
+     * 段内和段间都按原顺序写入，结果与单线程完全一致。
+     */
+    private int[] radixSortParallel(int len){
+        final int threads = sortThreads, chunk = (len + threads - 1) / threads;
+        final int[] initOrder = sortOrder;
+        for(int i = 0; i < len; i++) initOrder[i] = i;
+
+        //先根据总计数判断所有需要进行的轮次，之后chunkCounts的前RADIX项作为每轮的临时计数
+        long firstKey = sortKeys[0];
+        int passMask = 0;
+        for(int pass = 0, base = 0; pass < RADIX_PASSES; pass++, base += RADIX){
+            int digit = base + (int)((firstKey >>> (pass * RADIX_BITS)) & (RADIX - 1)), total = 0;
+            for(int t = 0; t < threads; t++) total += chunkCounts[t][digit];
+            if(total != len) passMask |= 1 << pass;
+        }
+
+        for(int pass = 0; pass < RADIX_PASSES; pass++){
+            if((passMask & (1 << pass)) == 0) continue;
+            final int shift = pass * RADIX_BITS;
+            parallel(threads, t -> {
+                final long[] keys = sortKeys;
+                final int[] counts = chunkCounts[t];
+                Arrays.fill(counts, 0, RADIX, 0);
+                for(int i = t * chunk, end = Math.min(len, i + chunk); i < end; i++){
+                    counts[(int)((keys[i] >>> shift) & (RADIX - 1))]++;
+                }
+            });
+            for(int b = 0, loc = 0; b < RADIX; b++){
+                for(int t = 0; t < threads; t++){
+                    int[] counts = chunkCounts[t];
+                    int c = counts[b];
+                    counts[b] = loc;
+                    loc += c;
+                }
+            }
+            parallel(threads, t -> {
+                final long[] keys = sortKeys, keysSwap = sortKeysSwap;
+                final int[] order = sortOrder, orderSwap = sortOrderSwap, counts = chunkCounts[t];
+                for(int i = t * chunk, end = Math.min(len, i + chunk); i < end; i++){
+                    long key = keys[i];
+                    int dst = counts[(int)((key >>> shift) & (RADIX - 1))]++;
+                    keysSwap[dst] = key;
+                    orderSwap[dst] = order[i];
+                }
+            });
+            long[] tmpKeys = sortKeys;
+            sortKeys = sortKeysSwap;
+            sortKeysSwap = tmpKeys;
+            int[] tmpOrder = sortOrder;
+            sortOrder = sortOrderSwap;
+            sortOrderSwap = tmpOrder;
+        }
+
+        return sortOrder;
+    }
+
+    /** 将任务分为threads段，第0段在当前线程执行，等待全部完成后返回 */
+    private void parallel(int threads, Intc task){
+        if(sortExecutor == null) sortExecutor = Threads.executor("Sprite Sort", sortThreads - 1);
+        final Future<?>[] tasks = sortTasks;
+        for(int t = 1; t < threads; t++){
+            final int id = t;
+            tasks[t] = sortExecutor.submit(() -> task.get(id));
+        }
+        task.get(0);
+        for(int t = 1; t < threads; t++){
+            Threads.await(tasks[t]);
+            tasks[t] = null;
+        }
+    }
+
+    /** 旧版排序：两次mapToRank后计数排序，保留作为可选回退 */
+    private void sortRequestsLegacy(){
         int numRequests = this.numRequests;
         int[] arr = this.requestZ;
         if(RenderExt.renderSort){
-            hashZ = DebugUtil.renderDebug ? Float.floatToIntBits((float)Math.random()) : 0;
             int[] extraZ = this.extraZ;
             //分别map以缩小值域，以合并到一个int值域
             mapToRank(arr, numRequests);
@@ -82,7 +558,6 @@ public class MySpriteBatch extends MySpriteBatchBase{
 
         countingSortMap(arr, numRequests);//arr is loc now;
 
-        if(copy.length < requests.length) copy = new DrawRequest[requests.length];
         final DrawRequest[] items = requests, dest = copy;
         for(int i = 0; i < numRequests; i++){
             dest[arr[i]] = items[i];
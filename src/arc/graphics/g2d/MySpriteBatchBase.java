@@ -11,7 +11,8 @@ import arc.util.*;
 import java.nio.*;
 import java.util.*;
 
-//MDTX: removed multithreading
+//MDTX: removed multithreading. Draw state is global, so parallel recording goes through MySpriteBatch.Recorder instead
+//MDTX: optional compact vertex format
 
 /**
  *
@@ -24,17 +25,41 @@ public class MySpriteBatchBase extends Batch{
     //xy + color + uv + mix_color
     public static final int VERTEX_SIZE = 2 + 1 + 2 + 1;
     public static final int SPRITE_SIZE = 4 * VERTEX_SIZE;
+    //MDTX: compact vertex, xy + color + packed uv(2 x normalized uint16) + mix_color
+    public static final int COMPACT_VERTEX_SIZE = 2 + 1 + 1 + 1;
+    public static final int COMPACT_SPRITE_SIZE = 4 * COMPACT_VERTEX_SIZE;
+    private static final boolean bigEndian = ByteOrder.nativeOrder() == ByteOrder.BIG_ENDIAN;
+    private static final VertexAttribute packedTexCoords = new VertexAttribute(2, Gl.unsignedShort, true, Shader.texcoordAttribute + "0");
 
     private static final int initialSize = 10000;
-    private static final float[] emptyVertices = new float[0];
+    /** 顶点已写入requestVerts/requestCompactVerts，offset为写入位置 */
+    private static final float[] emptyVertices = new float[0], emptyCompactVertices = new float[0];
 
     protected Mesh mesh;
     protected FloatBuffer buffer;
+    protected int meshSize;
+
+    /**
+     * 紧凑顶点格式：记录时直接打包到{@link #requestCompactVerts}，按int保存原始位，uv始终不作为float处理。
+     * uv超出[0,1]的请求(重复纹理等)仍按标准格式记录，两种格式分别写入各自的mesh，切换时flush。
+     */
+    protected boolean compact;
+    protected @Nullable Mesh compactMesh;
+    /** 紧凑格式的暂存区，flush时整块复制到compactMesh；两个视图共享同一块内存 */
+    protected @Nullable IntBuffer compactBuffer;
+    protected @Nullable FloatBuffer compactBufferView;
+    /** 当前写入的格式，idx按该格式计数 */
+    protected boolean bufferCompact;
 
     final float[] tmpVertices = new float[SPRITE_SIZE];
+    final int[] tmpCompactVertices = new int[COMPACT_SPRITE_SIZE];
+    final float[] corners = new float[8];
+    int[] convertVertices = new int[COMPACT_SPRITE_SIZE];
 
     float[] requestVerts = new float[initialSize * SPRITE_SIZE];
     int requestVertOffset = 0;
+    int[] requestCompactVerts = new int[0];
+    int requestCompactOffset = 0;
 
     protected boolean sort, flushing;
     protected DrawRequest[] requests = new DrawRequest[initialSize], copy = new DrawRequest[0];
@@ -45,6 +70,10 @@ public class MySpriteBatchBase extends Batch{
 
     protected static class DrawRequest{
         int verticesOffset, verticesLength;
+        /** 顶点在requestCompactVerts中 */
+        boolean compact;
+        /** 不为null时顶点在并行记录的数组中，见MySpriteBatch.Recorder */
+        float[] vertices;
         Texture texture;
         Blending blending;
         Runnable run;
@@ -80,30 +109,11 @@ public class MySpriteBatchBase extends Batch{
         // 32767 is max vertex index, so 32767 / 4 vertices per sprite = 8191 sprites max.
         if(size > 8191) throw new IllegalArgumentException("Can't have more than 8191 sprites per batch: " + size);
 
+        meshSize = size;
         if(size > 0){
             projectionMatrix.setOrtho(0, 0, Core.graphics.getWidth(), Core.graphics.getHeight());
 
-            mesh = new Mesh(true, false, size * 4, size * 6,
-            VertexAttribute.position,
-            VertexAttribute.color,
-            VertexAttribute.texCoords,
-            VertexAttribute.mixColor
-            );
-
-            int len = size * 6;
-            short[] indices = new short[len];
-            short j = 0;
-            for(int i = 0; i < len; i += 6, j += 4){
-                indices[i] = j;
-                indices[i + 1] = (short)(j + 1);
-                indices[i + 2] = (short)(j + 2);
-                indices[i + 3] = (short)(j + 2);
-                indices[i + 4] = (short)(j + 3);
-                indices[i + 5] = j;
-            }
-            mesh.setIndices(indices);
-            mesh.getVerticesBuffer().position(0);
-            mesh.getVerticesBuffer().limit(mesh.getVerticesBuffer().capacity());
+            mesh = createMesh(size, false);
 
             if(defaultShader == null){
                 shader = createShader();
@@ -112,8 +122,6 @@ public class MySpriteBatchBase extends Batch{
                 shader = defaultShader;
             }
 
-            //mark indices as dirty once for GL30
-            mesh.getIndicesBuffer();
             buffer = mesh.getVerticesBuffer();
         }else{
             shader = null;
@@ -124,12 +132,76 @@ public class MySpriteBatchBase extends Batch{
         }
     }
 
+    protected static Mesh createMesh(int size, boolean compact){
+        Mesh mesh = new Mesh(true, false, size * 4, size * 6,
+        VertexAttribute.position,
+        VertexAttribute.color,
+        compact ? packedTexCoords : VertexAttribute.texCoords,
+        VertexAttribute.mixColor
+        );
+
+        int len = size * 6;
+        short[] indices = new short[len];
+        short j = 0;
+        for(int i = 0; i < len; i += 6, j += 4){
+            indices[i] = j;
+            indices[i + 1] = (short)(j + 1);
+            indices[i + 2] = (short)(j + 2);
+            indices[i + 3] = (short)(j + 2);
+            indices[i + 4] = (short)(j + 3);
+            indices[i + 5] = j;
+        }
+        mesh.setIndices(indices);
+        mesh.getVerticesBuffer().position(0);
+        mesh.getVerticesBuffer().limit(mesh.getVerticesBuffer().capacity());
+
+        //mark indices as dirty once for GL30
+        mesh.getIndicesBuffer();
+        return mesh;
+    }
+
+    /**
+     * 切换紧凑顶点格式：uv压缩为两个归一化uint16，每个顶点从6个float减少到5个，记录、复制与上传的数据量都减少1/6。
+     * 归一化属性对shader透明，默认shader与自定义shader都无需修改。
+     * 会先flush所有待绘制内容。
+     */
+    public void setCompactVertices(boolean compact){
+        if(this.compact == compact || mesh == null) return;
+        flush();
+        this.compact = compact;
+        if(compact){
+            compactMesh = createMesh(meshSize, true);
+            //与mesh的buffer相同的本机字节序，flush时为整块内存复制
+            ByteBuffer bytes = ByteBuffer.allocateDirect(meshSize * COMPACT_SPRITE_SIZE * 4).order(ByteOrder.nativeOrder());
+            compactBuffer = bytes.asIntBuffer();
+            compactBufferView = bytes.asFloatBuffer();
+            requestCompactVerts = new int[initialSize * COMPACT_SPRITE_SIZE];
+        }else if(compactMesh != null){
+            setBufferFormat(false);
+            compactMesh.dispose();
+            compactMesh = null;
+            compactBuffer = null;
+            compactBufferView = null;
+            requestCompactVerts = new int[0];
+        }
+    }
+
+    /** 切换写入的格式，已有内容时先flush */
+    protected void setBufferFormat(boolean compact){
+        if(bufferCompact == compact) return;
+        if(idx > 0) flush();
+        bufferCompact = compact;
+    }
+
     @Override
     public void dispose(){
         super.dispose();
         if(mesh != null){
             mesh.dispose();
         }
+        if(compactMesh != null){
+            compactMesh.dispose();
+        }
     }
 
     @Override
@@ -165,35 +237,40 @@ public class MySpriteBatchBase extends Batch{
         super.discard();
 
         buffer.position(0);
+        if(compactBuffer != null) compactBuffer.clear();
     }
 
     @Override
     protected void draw(Texture texture, float[] spriteVertices, int offset, int count){
         if(sort && !flushing){
+            boolean packed = spriteVertices == emptyCompactVertices;
+            if(!packed && spriteVertices != emptyVertices){
+                //外部传入的顶点，能打包时按紧凑格式记录
+                int stored = compact ? putRequestCompactVertices(spriteVertices, offset, count) : -1;
+                packed = stored != -1;
+                if(packed){
+                    count = stored;
+                    offset = requestCompactOffset - stored;
+                }else{
+                    count = putRequestVertices(spriteVertices, offset, count);
+                    offset = requestVertOffset - count;
+                }
+            }
+            //同一格式的顶点总是连续写入，可以直接合并到上一个请求
             int num = numRequests;
             if(num > 0){
                 final DrawRequest last = requests[num - 1];
-                if(last.run == null && last.texture == texture && last.blending == blending && requestZ[num - 1] == intZ){
-                    if(spriteVertices != emptyVertices){
-                        prepare(count);
-                        System.arraycopy(spriteVertices, offset, requestVerts, requestVertOffset, count);
-                        requestVertOffset += count;
-                    }
+                if(last.run == null && last.vertices == null && last.texture == texture && last.blending == blending && last.compact == packed && requestZ[num - 1] == intZ){
                     last.verticesLength += count;
                     return;
                 }
             }
             if(num >= this.requests.length) expandRequests();
             final DrawRequest req = requests[num];
-            if(spriteVertices != emptyVertices){
-                req.verticesOffset = requestVertOffset;
-                prepare(count);
-                System.arraycopy(spriteVertices, offset, requestVerts, requestVertOffset, count);
-                requestVertOffset += count;
-            }else{
-                req.verticesOffset = offset;
-            }
+            req.verticesOffset = offset;
             req.verticesLength = count;
+            req.compact = packed;
+            req.vertices = null;
             requestZ[num] = intZ;
             req.texture = texture;
             req.blending = blending;
@@ -210,11 +287,19 @@ public class MySpriteBatchBase extends Batch{
             drawSuper(region, x, y, originX, originY, width, height, rotation);
             return;
         }
-        int pos = this.requestVertOffset;
-        this.requestVertOffset += 24;
-        prepare(24);
+        if(compact && packable(region)){
+            int pos = this.requestCompactOffset, size = COMPACT_SPRITE_SIZE;
+            this.requestCompactOffset += size;
+            prepareCompact(size);
+            constructCompactVertices(this.requestCompactVerts, pos, region, x, y, originX, originY, width, height, rotation);
+            draw(region.texture, emptyCompactVertices, pos, size);
+            return;
+        }
+        int pos = this.requestVertOffset, size = SPRITE_SIZE;
+        this.requestVertOffset += size;
+        prepare(size);
         constructVertices(this.requestVerts, pos, region, x, y, originX, originY, width, height, rotation);
-        draw(region.texture, emptyVertices, pos, SPRITE_SIZE);
+        draw(region.texture, emptyVertices, pos, size);
     }
 
     @Override
@@ -236,6 +321,65 @@ public class MySpriteBatchBase extends Batch{
         if(requestVertOffset + i >= requestVerts.length) requestVerts = Arrays.copyOf(requestVerts, requestVerts.length << 1);
     }
 
+    protected void prepareCompact(int i){
+        if(requestCompactOffset + i >= requestCompactVerts.length) requestCompactVerts = Arrays.copyOf(requestCompactVerts, requestCompactVerts.length << 1);
+    }
+
+    /**
+     * 将外部传入的顶点写入requestVerts
+     * @return 写入的float数
+     */
+    protected int putRequestVertices(float[] spriteVertices, int offset, int count){
+        prepare(count);
+        System.arraycopy(spriteVertices, offset, requestVerts, requestVertOffset, count);
+        requestVertOffset += count;
+        return count;
+    }
+
+    /**
+     * 将外部传入的标准格式顶点打包写入requestCompactVerts
+     * @return 写入的int数，有顶点无法打包时为-1，此时不写入
+     */
+    protected int putRequestCompactVertices(float[] spriteVertices, int offset, int count){
+        prepareCompact(count / VERTEX_SIZE * COMPACT_VERTEX_SIZE);
+        int stored = compactVertices(spriteVertices, offset, requestCompactVerts, requestCompactOffset, count);
+        if(stored != -1) requestCompactOffset += stored;
+        return stored;
+    }
+
+    /**
+     * 将标准格式顶点转换为紧凑格式，float按原始位保存
+     * @return 写入的int数，有顶点无法打包时为-1
+     */
+    protected static int compactVertices(float[] src, int offset, int[] dest, int destOffset, int count){
+        int j = destOffset;
+        for(int i = offset, end = offset + count; i < end; i += VERTEX_SIZE, j += COMPACT_VERTEX_SIZE){
+            float u = src[i + 3], v = src[i + 4];
+            if(!packable(u, v)) return -1;
+            dest[j] = Float.floatToRawIntBits(src[i]);
+            dest[j + 1] = Float.floatToRawIntBits(src[i + 1]);
+            dest[j + 2] = Float.floatToRawIntBits(src[i + 2]);
+            dest[j + 3] = packUV(u, v);
+            dest[j + 4] = Float.floatToRawIntBits(src[i + 5]);
+        }
+        return j - destOffset;
+    }
+
+    /** 超出[0,1]的uv(重复纹理等)无法用归一化uint16表示 */
+    protected static boolean packable(float u, float v){
+        return u >= 0f && u <= 1f && v >= 0f && v <= 1f;
+    }
+
+    protected static boolean packable(TextureRegion region){
+        return packable(region.u, region.v) && packable(region.u2, region.v2);
+    }
+
+    /** 将uv打包为两个归一化uint16，按本机字节序写入后u在前，需先检查{@link #packable(float, float)} */
+    protected static int packUV(float u, float v){
+        int pu = (int)(u * 65535f + 0.5f), pv = (int)(v * 65535f + 0.5f);
+        return bigEndian ? (pu << 16) | pv : pu | (pv << 16);
+    }
+
     protected void expandRequests(){
         final DrawRequest[] requests = this.requests, newRequests = Arrays.copyOf(requests, requests.length * 7 / 4);
         for(int i = requests.length; i < newRequests.length; i++){
@@ -263,14 +407,25 @@ public class MySpriteBatchBase extends Batch{
         }
 
         Gl.depthMask(false);
-        int count = idx / SPRITE_SIZE * 6;
+        int count = idx / (bufferCompact ? COMPACT_SPRITE_SIZE : SPRITE_SIZE) * 6;
 
         blending.apply();
 
         lastTexture.bind();
-        Mesh mesh = this.mesh;
+        Mesh mesh = bufferCompact ? compactMesh : this.mesh;
         //calling buffer() marks it as dirty, so it gets reuploaded upon render
-        mesh.getVerticesBuffer();
+        FloatBuffer buffer = mesh.getVerticesBuffer();
+
+        if(bufferCompact){
+            //整块内存复制，打包的uv不经过float
+            FloatBuffer staged = compactBufferView;
+            staged.position(0);
+            staged.limit(idx);
+            buffer.position(0);
+            buffer.put(staged);
+            staged.limit(staged.capacity());
+            compactBuffer.clear();
+        }
 
         buffer.position(0);
         buffer.limit(idx);
@@ -290,6 +445,7 @@ public class MySpriteBatchBase extends Batch{
         Blending preBlending = blending;
 
         float[] vertices = this.requestVerts;
+        int[] packedVertices = this.requestCompactVerts;
         DrawRequest[] r = copy;
         int num = numRequests;
         for(int j = 0; j < num; j++){
@@ -301,7 +457,11 @@ public class MySpriteBatchBase extends Batch{
                 req.run.run();
                 req.run = null;
             }else if(req.texture != null){
-                drawSuper(req.texture, vertices, req.verticesOffset, req.verticesLength);
+                if(req.compact){
+                    drawCompact(req.texture, packedVertices, req.verticesOffset, req.verticesLength);
+                }else{
+                    drawRaw(req.texture, req.vertices != null ? req.vertices : vertices, req.verticesOffset, req.verticesLength);
+                }
             } // the request is invalid, but crashing wouldn't be very nice, so it is simply ignored
         }
 
@@ -311,60 +471,105 @@ public class MySpriteBatchBase extends Batch{
 
         numRequests = 0;
         requestVertOffset = 0;
+        requestCompactOffset = 0;
     }
 
+    /** 未排序时外部传入的顶点，紧凑格式下能打包时转换后写入 */
     protected void drawSuper(Texture texture, float[] spriteVertices, int offset, int count){
+        if(compact){
+            int size = count / VERTEX_SIZE * COMPACT_VERTEX_SIZE;
+            if(convertVertices.length < size) convertVertices = new int[size];
+            if(compactVertices(spriteVertices, offset, convertVertices, 0, count) != -1){
+                drawCompact(texture, convertVertices, 0, size);
+                return;
+            }
+        }
+        drawRaw(texture, spriteVertices, offset, count);
+    }
 
-        int verticesLength = buffer.capacity();
-        int remainingVertices = verticesLength;
+    /** 绘制标准格式的顶点 */
+    protected void drawRaw(Texture texture, float[] spriteVertices, int offset, int count){
         if(texture != lastTexture){
             switchTexture(texture);
-        }else{
-            remainingVertices -= idx;
-            if(remainingVertices == 0){
-                flush();
-                remainingVertices = verticesLength;
-            }
         }
-        int copyCount = Math.min(remainingVertices, count);
-
-        buffer.put(spriteVertices, offset, copyCount);
-
-        idx += copyCount;
-        count -= copyCount;
+        setBufferFormat(false);
+        int capacity = buffer.capacity();
         while(count > 0){
-            offset += copyCount;
-            flush();
-            copyCount = Math.min(verticesLength, count);
+            if(idx == capacity) flush();
+            int copyCount = Math.min(capacity - idx, count);
             buffer.put(spriteVertices, offset, copyCount);
             idx += copyCount;
+            offset += copyCount;
             count -= copyCount;
         }
     }
 
-    protected void drawSuper(TextureRegion region, float x, float y, float originX, float originY, float width, float height, float rotation){
-
-        Texture texture = region.texture;
+    /** 绘制紧凑格式的顶点，写入暂存区 */
+    protected void drawCompact(Texture texture, int[] vertices, int offset, int count){
         if(texture != lastTexture){
             switchTexture(texture);
-        }else if(idx == buffer.capacity()){
-            flush();
         }
+        setBufferFormat(true);
+        IntBuffer buffer = compactBuffer;
+        int capacity = buffer.capacity();
+        while(count > 0){
+            if(idx == capacity) flush();
+            int copyCount = Math.min(capacity - idx, count);
+            buffer.put(vertices, offset, copyCount);
+            idx += copyCount;
+            offset += copyCount;
+            count -= copyCount;
+        }
+    }
 
-        this.idx += SPRITE_SIZE;
+    protected void drawSuper(TextureRegion region, float x, float y, float originX, float originY, float width, float height, float rotation){
+        if(compact && packable(region)){
+            constructCompactVertices(this.tmpCompactVertices, 0, region, x, y, originX, originY, width, height, rotation);
+            drawCompact(region.texture, tmpCompactVertices, 0, COMPACT_SPRITE_SIZE);
+            return;
+        }
         constructVertices(this.tmpVertices, 0, region, x, y, originX, originY, width, height, rotation);
-        buffer.put(tmpVertices);
+        drawRaw(region.texture, tmpVertices, 0, SPRITE_SIZE);
     }
 
     protected final void constructVertices(float[] vertices, int idx, TextureRegion region, float x, float y, float originX, float originY, float width, float height, float rotation){
+        putSprite(vertices, idx, region, corners(this.corners, x, y, originX, originY, width, height, rotation), this.colorPacked, this.mixColorPacked);
+    }
+
+    /** 按四个角的坐标写入标准格式的顶点 */
+    protected static void putSprite(float[] vertices, int idx, TextureRegion region, float[] c, float color, float mixColor){
         float u = region.u;
         float v = region.v2;
         float u2 = region.u2;
         float v2 = region.v;
+        int size = VERTEX_SIZE;
+
+        putVertex(vertices, idx, c[0], c[1], color, u, v, mixColor);
+        putVertex(vertices, idx + size, c[2], c[3], color, u, v2, mixColor);
+        putVertex(vertices, idx + size * 2, c[4], c[5], color, u2, v2, mixColor);
+        putVertex(vertices, idx + size * 3, c[6], c[7], color, u2, v, mixColor);
+    }
 
-        float color = this.colorPacked;
-        float mixColor = this.mixColorPacked;
+    /** 与{@link #constructVertices}相同的四个顶点，按紧凑格式写入，需先检查{@link #packable(TextureRegion)} */
+    protected final void constructCompactVertices(int[] vertices, int idx, TextureRegion region, float x, float y, float originX, float originY, float width, float height, float rotation){
+        int uv1 = packUV(region.u, region.v2);
+        int uv2 = packUV(region.u, region.v);
+        int uv3 = packUV(region.u2, region.v);
+        int uv4 = packUV(region.u2, region.v2);
+
+        int color = Float.floatToRawIntBits(this.colorPacked);
+        int mixColor = Float.floatToRawIntBits(this.mixColorPacked);
+        int size = COMPACT_VERTEX_SIZE;
+        float[] c = corners(this.corners, x, y, originX, originY, width, height, rotation);
+
+        putCompactVertex(vertices, idx, c[0], c[1], color, uv1, mixColor);
+        putCompactVertex(vertices, idx + size, c[2], c[3], color, uv2, mixColor);
+        putCompactVertex(vertices, idx + size * 2, c[4], c[5], color, uv3, mixColor);
+        putCompactVertex(vertices, idx + size * 3, c[6], c[7], color, uv4, mixColor);
+    }
 
+    /** @return 四个角的坐标(x1, y1, ... x4, y4)，写入c */
+    protected static float[] corners(float[] c, float x, float y, float originX, float originY, float width, float height, float rotation){
         if(!Mathf.zero(rotation)){
             //bottom left and top right corner points relative to origin
             float worldOriginX = x + originX;
@@ -387,65 +592,45 @@ public class MySpriteBatchBase extends Batch{
             float x4 = x1 + (x3 - x2);
             float y4 = y3 - (y2 - y1);
 
-            vertices[idx] = x1;
-            vertices[idx + 1] = y1;
-            vertices[idx + 2] = color;
-            vertices[idx + 3] = u;
-            vertices[idx + 4] = v;
-            vertices[idx + 5] = mixColor;
-
-            vertices[idx + 6] = x2;
-            vertices[idx + 7] = y2;
-            vertices[idx + 8] = color;
-            vertices[idx + 9] = u;
-            vertices[idx + 10] = v2;
-            vertices[idx + 11] = mixColor;
-
-            vertices[idx + 12] = x3;
-            vertices[idx + 13] = y3;
-            vertices[idx + 14] = color;
-            vertices[idx + 15] = u2;
-            vertices[idx + 16] = v2;
-            vertices[idx + 17] = mixColor;
-
-            vertices[idx + 18] = x4;
-            vertices[idx + 19] = y4;
-            vertices[idx + 20] = color;
-            vertices[idx + 21] = u2;
-            vertices[idx + 22] = v;
-            vertices[idx + 23] = mixColor;
+            c[0] = x1;
+            c[1] = y1;
+            c[2] = x2;
+            c[3] = y2;
+            c[4] = x3;
+            c[5] = y3;
+            c[6] = x4;
+            c[7] = y4;
         }else{
             float fx2 = x + width;
             float fy2 = y + height;
 
-            vertices[idx] = x;
-            vertices[idx + 1] = y;
-            vertices[idx + 2] = color;
-            vertices[idx + 3] = u;
-            vertices[idx + 4] = v;
-            vertices[idx + 5] = mixColor;
-
-            vertices[idx + 6] = x;
-            vertices[idx + 7] = fy2;
-            vertices[idx + 8] = color;
-            vertices[idx + 9] = u;
-            vertices[idx + 10] = v2;
-            vertices[idx + 11] = mixColor;
-
-            vertices[idx + 12] = fx2;
-            vertices[idx + 13] = fy2;
-            vertices[idx + 14] = color;
-            vertices[idx + 15] = u2;
-            vertices[idx + 16] = v2;
-            vertices[idx + 17] = mixColor;
-
-            vertices[idx + 18] = fx2;
-            vertices[idx + 19] = y;
-            vertices[idx + 20] = color;
-            vertices[idx + 21] = u2;
-            vertices[idx + 22] = v;
-            vertices[idx + 23] = mixColor;
+            c[0] = x;
+            c[1] = y;
+            c[2] = x;
+            c[3] = fy2;
+            c[4] = fx2;
+            c[5] = fy2;
+            c[6] = fx2;
+            c[7] = y;
         }
+        return c;
+    }
+
+    private static void putVertex(float[] vertices, int idx, float x, float y, float color, float u, float v, float mixColor){
+        vertices[idx] = x;
+        vertices[idx + 1] = y;
+        vertices[idx + 2] = color;
+        vertices[idx + 3] = u;
+        vertices[idx + 4] = v;
+        vertices[idx + 5] = mixColor;
+    }
+
+    private void putCompactVertex(int[] vertices, int idx, float x, float y, int color, int uv, int mixColor){
+        vertices[idx] = Float.floatToRawIntBits(x);
+        vertices[idx + 1] = Float.floatToRawIntBits(y);
+        vertices[idx + 2] = color;
+        vertices[idx + 3] = uv;
+        vertices[idx + 4] = mixColor;
     }
 
     public static Shader createShader(){
@@ -46,8 +46,11 @@ public class Hooks implements ApplicationListener{
             TimeControl.init();
             UIExt.init();
             ReplayController.init();
+            NetTelemetry.init();
+            OutboundSync.init();
             ArcOld.colorizeContent();
             DamagePopup.init();
+            PowerStats.init();
         }
         if(Vars.headless || Core.settings.getBool("console")){
             Vars.mods.getScripts().runConsole("X=Packages.mindustryX.features");
@@ -111,6 +114,8 @@ public class Hooks implements ApplicationListener{
             Vars.maxSchematicSize = VarsX.maxSchematicSize.get() > 256 ? Integer.MAX_VALUE : VarsX.maxSchematicSize.get();
 
             ArcOld.updatePlayer();
+            //Hooks在netClient之后更新，本帧的数据包都已提交
+            OutboundSync.flush();
         }
     }
 
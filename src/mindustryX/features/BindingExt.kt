@@ -24,6 +24,7 @@ enum class BindingExt(val default: KeybindValue = KeyCode.unset, val category: S
     focusLogicController(KeyCode.unset, onTap = { mindustryX.features.func.focusLogicController() }),
     placeRouterReplacement(KeyCode.shiftLeft),
     overlayUI(KeyCode.z, onTap = { if (!Core.input.ctrl()) OverlayUI.toggle() }),
+    instantReplay(KeyCode.unset, onTap = ReplayController::exportInstantReplay),
     ;
 
     private val bind: KeyBind = KeyBind.add(name, default, category)
@@ -131,7 +131,7 @@ public class DamagePopup{
         }
     }
 
-    private static class Popup extends Decal{
+    private static class Popup extends Decal implements VisualUpdate.VisualEntity{
         public static float maxAmountEffect = 5_000;
         public static int maxCountEffect = 50;
         public static float amountEffect = 3f;
@@ -201,11 +201,9 @@ public class DamagePopup{
                 x = damaged.getX() + offsetX;
                 y = damaged.getY() + offsetY;
             }else{
-                float positionEase = Bezier.quadratic(v1, fin(),
-                v2.set(0f, 0f),
-                v3.set(0.19f, 1f),
-                v4.set(0.22f, 1f),
-                v5.set(1f, 1f)).y;
+                //控制点y为0,1,1的二次贝塞尔曲线；不使用Tmp，以便并行更新
+                float fin = fin();
+                float positionEase = fin * (2f - fin);
 
                 float offsetLength = this.offsetLength * positionEase;
                 x = offsetX + Angles.trnsx(rotation, offsetLength);
@@ -24,6 +24,12 @@ object DebugUtil {
     @JvmField
     var lastSwitchTexture: Int = 0
 
+    @JvmField
+    var sortCacheHit: Int = 0
+
+    @JvmField
+    var sortCacheMiss: Int = 0
+
     @JvmField
     var logicTime: Long = 0
 
@@ -35,6 +41,8 @@ object DebugUtil {
 
     @JvmStatic
     fun init() {
+        EntityProfiler.init()
+        PowerGraphIndex.init()
         Events.run(EventType.Trigger.preDraw) {
             rendererTime = PerfCounter.render.rawValueNs()
             uiTime = PerfCounter.ui.rawValueNs()
@@ -49,6 +57,15 @@ object DebugUtil {
         label { "Vertices: $lastVertices" }.fillX().labelAlign(Align.left).touchable(Touchable.disabled).row()
         label { "Texture: $lastSwitchTexture" }.fillX().labelAlign(Align.left).touchable(Touchable.disabled).row()
         label { "Flush: $lastFlushCount" }.fillX().labelAlign(Align.left).touchable(Touchable.disabled).row()
+        label { "SortCache: $sortCacheHit/${sortCacheHit + sortCacheMiss}" }.fillX().labelAlign(Align.left).touchable(Touchable.disabled).row()
+        label { "Replay: ${ReplayController.writerStats()}" }.fillX().labelAlign(Align.left).touchable(Touchable.disabled).row()
+        label { "Net: ${NetTelemetry.summary()}" }.fillX().labelAlign(Align.left).touchable(Touchable.disabled).row()
+        label { "Net top: ${NetTelemetry.topTypes(NetTelemetry.IN, 3)}" }.fillX().labelAlign(Align.left).touchable(Touchable.disabled).row()
+        label { "Sync: ${OutboundSync.stats()}" }.fillX().labelAlign(Align.left).touchable(Touchable.disabled).row()
+        label { "Power: ${PowerGraphIndex.stats()}" }.fillX().labelAlign(Align.left).touchable(Touchable.disabled).row()
+        button("Export Net CSV") { NetTelemetry.exportCsv() }.disabled { !NetTelemetry.enable.get() }.fillX().row()
+        check("Entity Profiler") { EntityProfiler.active = it }.checked { EntityProfiler.active }.row()
+        add(EntityProfiler.table()).fillX().row()
         image().update { DebugUtil.reset() }.row()
     }
 
@@ -58,5 +75,7 @@ object DebugUtil {
         lastFlushCount = 0
         lastVertices = 0
         lastDrawRequests = 0
+        sortCacheHit = 0
+        sortCacheMiss = 0
     }
 }
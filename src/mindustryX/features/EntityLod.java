@@ -0,0 +1,50 @@
+package mindustryX.features;
+
+import arc.*;
+import arc.math.geom.*;
+import mindustry.*;
+import mindustry.gen.*;
+
+import static mindustry.Vars.tilesize;
+
+/**
+ * limitUpdate: 按与视野的距离分级更新实体。
+ * 视野(加上设置的边距)内每帧更新，之外每隔一个环宽升一级，分别每2/4/8帧更新一次，并放大Time.delta补偿。
+ * 同一级的实体按id错开更新的帧，避免集中在同一帧。
+ */
+public class EntityLod{
+    public static final int MAX_TIER = 3;
+    /** 环宽的最小值，格 */
+    private static final int MIN_RING = 10;
+
+    /** 本帧是否启用，由{@link #begin()}设置 */
+    public static boolean active;
+    private static int tick;
+    private static float minX, minY, maxX, maxY, ringWidth;
+    private static final Rect viewport = new Rect();
+
+    /** 每帧在实体更新前调用一次 */
+    public static void begin(){
+        int margin = LogicExt.limitUpdate.get();
+        active = margin > 0 && !Vars.headless && Core.camera != null;
+        if(!active) return;
+        tick++;
+        Core.camera.bounds(viewport);
+        viewport.grow(margin * tilesize * 2);
+        minX = viewport.x;
+        minY = viewport.y;
+        maxX = viewport.x + viewport.width;
+        maxY = viewport.y + viewport.height;
+        ringWidth = Math.max(margin, MIN_RING) * tilesize;
+    }
+
+    /** @return 本帧该实体的更新间隔(帧)，0表示本帧跳过 */
+    public static int period(Entityc e){
+        if(!(e instanceof Position p)) return 1;
+        float x = p.getX(), y = p.getY();
+        float dst = Math.max(Math.max(minX - x, x - maxX), Math.max(minY - y, y - maxY));
+        if(dst <= 0) return 1;
+        int period = 1 << Math.min(MAX_TIER, 1 + (int)(dst / ringWidth));
+        return ((tick + e.id()) & (period - 1)) == 0 ? period : 0;
+    }
+}
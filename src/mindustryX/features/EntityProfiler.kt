@@ -0,0 +1,201 @@
+package mindustryX.features
+
+import arc.Events
+import arc.scene.ui.layout.Table
+import arc.util.Strings
+import arc.util.Time
+import mindustry.entities.EntityGroup
+import mindustry.game.EventType
+import mindustry.gen.*
+import mindustry.type.UnitType
+import mindustry.ui.Styles
+import mindustry.world.Block
+import java.util.*
+
+/**
+ * 实体更新与绘制的采样计时，在[DebugUtil.metricTable]中显示。
+ * 每[SAMPLE]个实体计时一个，按类型统计(建筑按方块，单位按单位类型，其余按类)，估计耗时为采样耗时乘以[SAMPLE]；
+ * 采样同时按组件(unit/bullet/build/powerGraph/other)汇总为分组耗时，Groups.update只遍历Groups.all，各分组不会单独更新。
+ * all为整个实体组更新的完整计时；并行更新的视觉实体(见[VisualUpdate])无法按类型采样，整体计为visual。
+ * 每秒汇总一次，显示每帧的平均值。
+ */
+object EntityProfiler {
+    private const val SAMPLE = 16 //2的幂
+    private const val WINDOW = 1_000_000_000L
+
+    @JvmField
+    var active = false
+
+    private class Stat(val name: String) {
+        var update = 0L
+        var draw = 0L
+        var updateSamples = 0
+        var drawSamples = 0
+    }
+
+    /** 每帧的估计值，耗时为纳秒 */
+    class Row(val name: String, val update: Long, val draw: Long, val count: Int)
+
+    private val stats = IdentityHashMap<Any, Stat>()
+    private val groupTime = LinkedHashMap<String, Long>()
+    private val groupNames by lazy {
+        Groups::class.java.fields.filter { EntityGroup::class.java.isAssignableFrom(it.type) }
+            .associateTo(IdentityHashMap()) { it.get(null) as EntityGroup<*> to it.name }
+    }
+
+    private fun addGroupTime(name: String, ns: Long) {
+        groupTime[name] = (groupTime[name] ?: 0L) + ns
+    }
+    private var updateCounter = 0
+    private var drawCounter = 0
+    private var frames = 0
+    private var visualCount = 0L
+    private var windowStart = 0L
+
+    var rows: List<Row> = emptyList()
+        private set
+    var groups: List<Pair<String, Long>> = emptyList()
+        private set
+
+    /** 每次汇总后递增，用于刷新界面 */
+    var version = 0
+        private set
+
+    @JvmStatic
+    fun init() {
+        Events.run(EventType.Trigger.update) {
+            if (!active) {
+                if (frames != 0) reset()
+                return@run
+            }
+            frames++
+            if (windowStart == 0L) windowStart = Time.nanos()
+            if (Time.timeSinceNanos(windowStart) >= WINDOW) publish()
+        }
+    }
+
+    private fun group(e: Entityc): String = when (e) {
+        is Unitc -> "unit"
+        is Bulletc -> "bullet"
+        is Buildingc -> "build"
+        is PowerGraphUpdaterc -> "powerGraph"
+        else -> "other"
+    }
+
+    private fun key(e: Any): Any = when (e) {
+        is Building -> e.block
+        is mindustry.gen.Unit -> e.type
+        else -> e.javaClass
+    }
+
+    private fun stat(key: Any) = stats.getOrPut(key) {
+        Stat(
+            when (key) {
+                is Block -> key.name
+                is UnitType -> key.name
+                else -> (key as Class<*>).simpleName
+            }
+        )
+    }
+
+    /** 由EntityGroup.update调用 */
+    @JvmStatic
+    fun update(e: Entityc) {
+        if (++updateCounter and (SAMPLE - 1) != 0) {
+            e.update()
+            return
+        }
+        //更新后实体可能已被回收，先取类型
+        val stat = stat(key(e))
+        val group = group(e)
+        val start = Time.nanos()
+        e.update()
+        val time = Time.timeSinceNanos(start)
+        stat.update += time
+        stat.updateSamples++
+        addGroupTime(group, time * SAMPLE)
+    }
+
+    @JvmStatic
+    fun endUpdate(group: EntityGroup<*>, start: Long) {
+        addGroupTime(groupNames[group] ?: "?", Time.timeSinceNanos(start))
+    }
+
+    /** 由[VisualUpdate.run]调用 */
+    @JvmStatic
+    fun visualUpdate(count: Int, ns: Long) {
+        addGroupTime("visual", ns)
+        visualCount += count
+    }
+
+    /** @return 本次是否采样，采样时为开始时间，否则为-1 */
+    @JvmStatic
+    fun beginDraw(): Long = if (++drawCounter and (SAMPLE - 1) != 0) -1 else Time.nanos()
+
+    /** @param key 实体或方块 */
+    @JvmStatic
+    fun endDraw(key: Any, start: Long) {
+        if (start < 0) return
+        val stat = stat(if (key is Block) key else key(key))
+        stat.draw += Time.timeSinceNanos(start)
+        stat.drawSamples++
+    }
+
+    private fun publish() {
+        val n = frames.toLong()
+        rows = stats.values.map { Row(it.name, it.update * SAMPLE / n, it.draw * SAMPLE / n, ((maxOf(it.updateSamples, it.drawSamples).toLong() * SAMPLE) / n).toInt()) }
+        groups = groupTime.entries.map { (if (it.key == "visual") "visual(${visualCount / n})" else it.key) to it.value / n }.sortedByDescending { it.second }
+        visualCount = 0
+        stats.clear()
+        groupTime.clear()
+        frames = 0
+        windowStart = Time.nanos()
+        version++
+    }
+
+    private fun reset() {
+        stats.clear()
+        groupTime.clear()
+        visualCount = 0
+        frames = 0
+        windowStart = 0
+        rows = emptyList()
+        groups = emptyList()
+        version++
+    }
+
+    /** 可按列排序的表格，每秒刷新 */
+    fun table(): Table = Table().apply {
+        var built = -1
+        var sort = 1
+        val headers = arrayOf("Type", "Update", "Draw", "Count")
+        val comparators = arrayOf<Comparator<Row>>(compareBy { it.name }, compareByDescending { it.update }, compareByDescending { it.draw }, compareByDescending { it.count })
+        fun ms(ns: Long) = Strings.fixed(ns / 1e6f, 3)
+        fun rebuild() {
+            clear()
+            if (!active) return
+            left().defaults().left().padRight(6f)
+            add("Groups: " + groups.joinToString(" ") { "${it.first} ${ms(it.second)}" }).colspan(headers.size).row()
+            headers.forEachIndexed { i, name ->
+                button(if (sort == i) "[accent]$name" else name, Styles.cleart) {
+                    sort = i
+                    rebuild()
+                }.growX()
+            }
+            row()
+            //Table.rows会遮蔽同名属性
+            for (r in EntityProfiler.rows.sortedWith(comparators[sort]).take(15)) {
+                add(r.name)
+                add(ms(r.update))
+                add(ms(r.draw))
+                add(r.count.toString())
+                row()
+            }
+        }
+        update {
+            if (built == version) return@update
+            built = version
+            rebuild()
+        }
+    }
+}
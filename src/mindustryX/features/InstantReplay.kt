@@ -0,0 +1,198 @@
+package mindustryX.features
+
+import arc.files.Fi
+import arc.func.Cons
+import arc.util.Log
+import arc.util.Threads
+import arc.util.Time
+import arc.util.io.ByteBufferOutput
+import arc.util.io.Writes
+import mindustry.Vars
+import mindustry.net.Net
+import mindustry.net.NetworkIO
+import mindustry.net.Packet
+import mindustry.net.Packets.WorldStream
+import mindustry.net.Streamable
+import java.io.ByteArrayOutputStream
+import java.nio.ByteBuffer
+import java.util.zip.DeflaterOutputStream
+
+/**
+ * 即时回放：在固定大小的堆外环形缓冲区中保留最近收到的数据包，以及回放起点需要的世界关键帧。
+ * 不需要开启完整录制，按下快捷键时用[export]导出为.mrep。
+ *
+ * 每隔[window]保存一次关键帧，缓冲区从倒数第二个关键帧开始保留，因此至少包含最近[window]的数据；
+ * 超出[capacity]时丢弃最早的数据包，对应的关键帧失效。
+ * 除[export]的写入外都在主线程调用。
+ * 堆外缓冲区在各实例间复用，只在[capacity]改变时重新分配，同一时间只应有一个实例。
+ */
+class InstantReplay(val capacity: Int, private val window: Float, private val meta: ReplayData) {
+    private class Keyframe(val time: Float, val position: Long, raw: ByteArray?, data: ByteArray?) {
+        /** 未压缩的世界数据，压缩完成后释放 */
+        @Volatile
+        var raw: ByteArray? = raw
+
+        /** WorldStream的内容 */
+        @Volatile
+        var data: ByteArray? = data
+
+        fun worldStream(): ByteArray {
+            val raw = raw
+            return data ?: deflate(raw!!)
+        }
+    }
+
+    private val view = sharedBuffer(capacity).duplicate()
+    private var head = 0L
+    private var tail = 0L
+    private val keyframes = ArrayDeque<Keyframe>()
+    private val tmpBuf: ByteBuffer = ByteBuffer.allocate(32768)
+    private val tmpWr = Writes(ByteBufferOutput(tmpBuf))
+    private val recordHead = ByteArray(RECORD_HEADER_SIZE)
+    private var streamBuf = ByteArray(32768)
+
+    fun add(packet: Packet) {
+        val id = Net.getPacketId(packet)
+        if (packet is Streamable) {
+            val length = packet.stream.available()
+            if (streamBuf.size < length) streamBuf = ByteArray(length)
+            packet.stream.apply {
+                mark(length)
+                read(streamBuf, 0, length)
+                reset()
+            }
+            if (packet is WorldStream) {
+                //进入新的世界，之前的数据都无法回放
+                keyframes.clear()
+                tail = head
+                keyframes.add(Keyframe(Time.time, head, null, streamBuf.copyOf(length)))
+                return
+            }
+            append(id, streamBuf, length)
+            return
+        }
+        val last = keyframes.lastOrNull()
+        if ((last == null || Time.time - last.time >= window) && Vars.net.client() && Vars.state.isGame) captureKeyframe()
+        tmpBuf.position(0)
+        ReplayData.writePacketData(packet, tmpWr)
+        append(id, tmpBuf.array(), tmpBuf.position())
+    }
+
+    /** 与服务器发送的WorldStream相同，压缩在后台进行 */
+    private fun captureKeyframe() {
+        val bytes = ByteArrayOutputStream()
+        NetworkIO.writeWorld(Vars.player, bytes)
+        val keyframe = Keyframe(Time.time, head, bytes.toByteArray(), null)
+        compressor.submit {
+            keyframe.data = deflate(keyframe.raw!!)
+            keyframe.raw = null
+        }
+        //没有有效关键帧时，之前的数据包都无法回放
+        if (keyframes.isEmpty()) tail = head
+        keyframes.add(keyframe)
+        while (keyframes.size > 2) keyframes.removeFirst()
+        tail = maxOf(tail, keyframes.first().position)
+    }
+
+    private fun append(id: Byte, data: ByteArray, length: Int) {
+        val size = RECORD_HEADER_SIZE + length
+        if (size > capacity / 4) {
+            //放不下的数据包：缺少它的回放会不同步，丢弃之前的数据，下一个数据包时重新保存关键帧
+            Log.warn("即时回放: 数据包过大(@ bytes)，从新的关键帧重新开始", length)
+            keyframes.clear()
+            tail = head
+            return
+        }
+        while (capacity - (head - tail) < size) evict()
+        ByteBuffer.wrap(recordHead).putFloat(Time.time).put(id).putInt(length)
+        put(head, recordHead, RECORD_HEADER_SIZE)
+        put(head + RECORD_HEADER_SIZE, data, length)
+        head += size
+    }
+
+    private fun evict() {
+        get(tail, recordHead, RECORD_HEADER_SIZE)
+        tail += RECORD_HEADER_SIZE + ByteBuffer.wrap(recordHead).getInt(5)
+        while (keyframes.isNotEmpty() && keyframes.first().position < tail) keyframes.removeFirst()
+    }
+
+    private fun put(position: Long, src: ByteArray, length: Int) {
+        val start = (position % capacity).toInt()
+        val first = minOf(length, capacity - start)
+        view.position(start)
+        view.put(src, 0, first)
+        view.position(0)
+        view.put(src, first, length - first)
+    }
+
+    private fun get(position: Long, dst: ByteArray, length: Int) {
+        val start = (position % capacity).toInt()
+        val first = minOf(length, capacity - start)
+        view.position(start)
+        view.get(dst, 0, first)
+        view.position(0)
+        view.get(dst, first, length - first)
+    }
+
+    /**
+     * 复制当前缓冲区，在后台写入[file]
+     * @return 没有可回放的数据时返回false
+     */
+    fun export(file: Fi, codec: Int, delta: Boolean, callback: Cons<Throwable?>): Boolean {
+        val keyframe = keyframes.firstOrNull() ?: return false
+        val bytes = ByteArray((head - keyframe.position).toInt())
+        get(keyframe.position, bytes, bytes.size)
+        val worldStreamId = Net.getPacketId(WorldStream())
+        Threads.daemon("Instant Replay Export") {
+            try {
+                val world = keyframe.worldStream()
+                ReplayData.Writer(file.write(false, 8192), codec, delta).use { writer ->
+                    writer.writeHeader(meta)
+                    writer.writeRecord(0f, worldStreamId, world, 0, world.size)
+                    val records = ByteBuffer.wrap(bytes)
+                    while (records.hasRemaining()) {
+                        val time = records.getFloat()
+                        val id = records.get()
+                        val length = records.getInt()
+                        writer.writeRecord(time - keyframe.time, id, bytes, records.position(), length)
+                        records.position(records.position() + length)
+                    }
+                }
+                callback.get(null)
+            } catch (e: Throwable) {
+                Log.err("导出即时回放失败", e)
+                file.delete()
+                callback.get(e)
+            }
+        }
+        return true
+    }
+
+    companion object {
+        //time(float), id(byte), length(int), data
+        private const val RECORD_HEADER_SIZE = 4 + 1 + 4
+
+        private val compressor by lazy { Threads.executor("Instant Replay Keyframe", 1) }
+        private var buffer: ByteBuffer? = null
+
+        /** 复用上次的缓冲区，内容由新实例的head/tail重新计算，无需清空 */
+        private fun sharedBuffer(capacity: Int): ByteBuffer {
+            buffer?.let { if (it.capacity() == capacity) return it }
+            //先释放引用，避免新旧缓冲区同时占用
+            buffer = null
+            return ByteBuffer.allocateDirect(capacity).also { buffer = it }
+        }
+
+        /** 关闭即时回放时释放缓冲区 */
+        @JvmStatic
+        fun release() {
+            buffer = null
+        }
+
+        private fun deflate(raw: ByteArray): ByteArray {
+            val out = ByteArrayOutputStream(raw.size / 4)
+            DeflaterOutputStream(out).use { it.write(raw) }
+            return out.toByteArray()
+        }
+    }
+}
@@ -1,8 +1,12 @@
 package mindustryX.features;
 
 import arc.*;
+import arc.files.*;
+import arc.struct.*;
+import arc.util.*;
 import mindustry.core.*;
 import mindustry.game.EventType.*;
+import mindustry.net.*;
 import mindustry.net.Packets.*;
 import mindustryX.features.SettingsV2.*;
 
@@ -24,7 +28,8 @@ public class LogicExt{
     });
     public static final CheckPref rotateCanvas = new CheckPref("block.rotateCanvas");
 
-    public static int limitUpdateTimer = 10;
+    private static int protocolVersion = Integer.MIN_VALUE;
+    private static @Nullable Seq<String> v146Packets;
 
     public static void init(){
         invertMapClick0.addFallbackName("invertMapClick");
@@ -32,12 +37,29 @@ public class LogicExt{
 
 
         Events.run(Trigger.update, () -> {
-            limitUpdateTimer = (limitUpdateTimer + 1) % 10;
+            EntityLod.begin();
+            VisualUpdate.begin();
             worldCreator = worldCreator0.get();
             terrainSchematic = terrainSchematic0.get();
             invertMapClick = invertMapClick0.get();
-            v146Mode = ConnectPacket.clientVersion == 146;
-            contentsCompatibleMode = ConnectPacket.clientVersion > 0 && ConnectPacket.clientVersion != Version.build;
+            //协议版本只在连接前改变
+            if(ConnectPacket.clientVersion != protocolVersion) setProtocolVersion(ConnectPacket.clientVersion);
         });
     }
+
+    /** 切换兼容模式，并一次性构建数据包id映射表 */
+    private static void setProtocolVersion(int version){
+        protocolVersion = version;
+        v146Mode = version == 146;
+        contentsCompatibleMode = version > 0 && version != Version.build;
+        Net.setPacketMapping(v146Mode ? v146Packets() : null);
+    }
+
+    private static Seq<String> v146Packets(){
+        if(v146Packets == null){
+            Fi fi = Core.files != null ? Core.files.internal("packetsV146.txt") : new Fi("packetsV146.txt", Files.FileType.internal);
+            v146Packets = Seq.with(fi.readString().replace("\r", "").split("\n"));
+        }
+        return v146Packets;
+    }
 }
\ No newline at end of file
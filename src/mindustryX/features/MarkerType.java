@@ -271,7 +271,7 @@ public class MarkerType{
     }
 
 
-    public static class MarkElement extends EffectState{
+    public static class MarkElement extends EffectState implements VisualUpdate.VisualEntity{
         public final MarkerType type;
         @Nullable
         public String message;
@@ -0,0 +1,221 @@
+package mindustryX.features
+
+import arc.Events
+import arc.files.Fi
+import arc.util.Log
+import arc.util.Time
+import arc.util.io.ByteBufferOutput
+import arc.util.io.Writes
+import mindustry.Vars
+import mindustry.net.Net
+import mindustry.net.Packet
+import mindustry.net.Streamable
+import mindustryX.events.SendPacketEvent
+import java.nio.BufferOverflowException
+import java.nio.ByteBuffer
+import java.util.*
+import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.atomic.AtomicLongArray
+import java.util.concurrent.atomic.AtomicReferenceArray
+import java.util.concurrent.atomic.LongAdder
+
+/**
+ * 客户端网络统计：按方向与数据包类型统计数量、字节数，最近一分钟的到达间隔分布，以及最近一分钟的逐秒带宽。
+ * 发送来自[SendPacketEvent]，接收来自handleClientReceived(见[ReplayController.onClientPacket])，每次连接服务器时清空。
+ * 计数器无锁，可在任意线程记录；字节数为数据包序列化后的大小(不含压缩与协议头)。
+ */
+object NetTelemetry {
+    val enable = SettingsV2.CheckPref("netTelemetry", false)
+
+    const val IN = 0
+    const val OUT = 1
+    private val directionNames = arrayOf("in", "out")
+
+    /** 到达间隔直方图：第i个桶为[2^(i-1), 2^i)毫秒，最后一个桶包含更长的间隔 */
+    const val GAP_BUCKETS = 16
+    private const val WINDOW = 60
+
+    class TypeStats(val direction: Int, val id: Byte) {
+        val count = LongAdder()
+        val bytes = LongAdder()
+        private val last = AtomicLong()
+
+        //到达间隔按秒分槽，与Rolling相同，只统计最近WINDOW秒
+        private val seconds = AtomicLongArray(WINDOW)
+        private val gapBuckets = AtomicLongArray(WINDOW * GAP_BUCKETS)
+        private val gapTotal = AtomicLongArray(WINDOW)
+        private val gapCount = AtomicLongArray(WINDOW)
+
+        internal fun add(now: Long, size: Int) {
+            count.increment()
+            bytes.add(size.toLong())
+            val prev = last.getAndSet(now)
+            if (prev == 0L) return
+            val ms = (now - prev) / 1_000_000
+            val sec = now / 1_000_000_000
+            val i = (sec % WINDOW).toInt()
+            val tag = seconds.get(i)
+            if (tag != sec && seconds.compareAndSet(i, tag, sec)) {
+                for (b in 0 until GAP_BUCKETS) gapBuckets.set(i * GAP_BUCKETS + b, 0)
+                gapTotal.set(i, 0)
+                gapCount.set(i, 0)
+            }
+            gapTotal.addAndGet(i, ms)
+            gapCount.incrementAndGet(i)
+            gapBuckets.incrementAndGet(i * GAP_BUCKETS + minOf(GAP_BUCKETS - 1, 64 - java.lang.Long.numberOfLeadingZeros(ms)))
+        }
+
+        private inline fun eachSecond(now: Long, action: (Int) -> Unit) {
+            val sec = now / 1_000_000_000
+            for (i in 0 until WINDOW) if (seconds.get(i) > sec - WINDOW) action(i)
+        }
+
+        /** 最近[WINDOW]秒的到达间隔分布 */
+        fun gaps(now: Long): LongArray = LongArray(GAP_BUCKETS).also { gaps ->
+            eachSecond(now) { i -> for (b in 0 until GAP_BUCKETS) gaps[b] += gapBuckets.get(i * GAP_BUCKETS + b) }
+        }
+
+        /** 最近[WINDOW]秒的平均到达间隔，毫秒 */
+        fun meanGap(now: Long): Double {
+            var total = 0L
+            var n = 0L
+            eachSecond(now) { i ->
+                total += gapTotal.get(i)
+                n += gapCount.get(i)
+            }
+            return if (n == 0L) 0.0 else total.toDouble() / n
+        }
+    }
+
+    /** 最近[WINDOW]秒的逐秒统计，各秒的槽位按秒数复用 */
+    class Rolling {
+        private val seconds = AtomicLongArray(WINDOW)
+        val bytes = AtomicLongArray(WINDOW)
+        val count = AtomicLongArray(WINDOW)
+
+        internal fun add(now: Long, size: Int) {
+            val sec = now / 1_000_000_000
+            val i = (sec % WINDOW).toInt()
+            val tag = seconds.get(i)
+            if (tag != sec && seconds.compareAndSet(i, tag, sec)) {
+                bytes.set(i, 0)
+                count.set(i, 0)
+            }
+            bytes.addAndGet(i, size.toLong())
+            count.incrementAndGet(i)
+        }
+
+        /** [ago]秒前的字节数，0为当前这一秒 */
+        fun bytesAt(now: Long, ago: Int): Long {
+            val sec = now / 1_000_000_000 - ago
+            val i = (sec % WINDOW).toInt()
+            return if (seconds.get(i) == sec) bytes.get(i) else 0
+        }
+
+        fun peak(now: Long) = (1 until WINDOW).maxOf { bytesAt(now, it) }
+    }
+
+    private val stats = Array(2) { AtomicReferenceArray<TypeStats>(256) }
+    val rolling = Array(2) { Rolling() }
+    private var startTime = Time.nanos()
+
+    //序列化计算大小，每个线程一份，不需要加锁
+    private class SizeBuffer {
+        val buf: ByteBuffer = ByteBuffer.allocate(32768)
+        val writes = Writes(ByteBufferOutput(buf))
+    }
+
+    private val sizeBuffer = ThreadLocal.withInitial { SizeBuffer() }
+
+    @JvmStatic
+    fun init() {
+        Events.on(SendPacketEvent::class.java) { e ->
+            //服务端逐个连接发送时con不为null，客户端只统计发往服务器的
+            if (!enable.get() || e.con != null || !Vars.net.client()) return@on
+            val packet = e.packet as? Packet ?: return@on
+            record(OUT, packet, false)
+        }
+    }
+
+    @JvmStatic
+    fun onReceive(packet: Packet) {
+        if (!enable.get()) return
+        record(IN, packet, true)
+    }
+
+    private fun record(direction: Int, packet: Packet, asServer: Boolean) {
+        val id = Net.getPacketId(packet)
+        val size = sizeOf(packet, asServer)
+        val now = Time.nanos()
+        val array = stats[direction]
+        val index = id.toInt() and 0xFF
+        val typeStats = array.get(index) ?: TypeStats(direction, id).let { if (array.compareAndSet(index, null, it)) it else array.get(index) }
+        typeStats.add(now, size)
+        rolling[direction].add(now, size)
+    }
+
+    private fun sizeOf(packet: Packet, asServer: Boolean): Int {
+        if (packet is Streamable) return packet.stream?.available() ?: 0
+        val tmp = sizeBuffer.get()
+        tmp.buf.position(0)
+        return try {
+            //收到的数据包由服务端序列化
+            if (asServer) ReplayData.writePacketData(packet, tmp.writes) else packet.write(tmp.writes)
+            tmp.buf.position()
+        } catch (e: BufferOverflowException) {
+            tmp.buf.capacity()
+        }
+    }
+
+    fun types(direction: Int): List<TypeStats> = (0 until 256).mapNotNull { stats[direction].get(it) }
+
+    @JvmStatic
+    fun reset() {
+        for (array in stats) for (i in 0 until 256) array.set(i, null)
+        for (i in 0..1) rolling[i] = Rolling()
+        startTime = Time.nanos()
+    }
+
+    /** 用于DebugUtil */
+    @JvmStatic
+    fun summary(): String {
+        if (!enable.get()) return "-"
+        val now = Time.nanos()
+        //当前这一秒未结束，显示上一秒
+        return "in ${rolling[IN].bytesAt(now, 1) / 1024}KB/s(peak ${rolling[IN].peak(now) / 1024}) " +
+                "out ${rolling[OUT].bytesAt(now, 1) / 1024}KB/s(peak ${rolling[OUT].peak(now) / 1024})"
+    }
+
+    /** 按字节数排序的前几个类型，用于DebugUtil */
+    @JvmStatic
+    fun topTypes(direction: Int, n: Int): String = types(direction).sortedByDescending { it.bytes.sum() }.take(n)
+        .joinToString(" ") { "${ReplayAnalyzer.packetName(it.id)}:${it.bytes.sum() / 1024}K" }
+
+    /**
+     * 导出到`dataDirectory/net-telemetry`：types.csv为各类型本次连接的累计统计与最近一分钟的到达间隔分布，timeline.csv为最近一分钟的逐秒带宽
+     * @return 输出目录
+     */
+    @JvmStatic
+    fun exportCsv(): Fi {
+        val dir = Vars.dataDirectory.child("net-telemetry").child(Date().time.toString())
+        dir.mkdirs()
+        val elapsed = Time.timeSinceNanos(startTime) / 1e9
+        dir.child("types.csv").writer(false).use { w ->
+            val now = Time.nanos()
+            w.write("direction,type,count,bytes,bytes_per_s,mean_gap_ms," + (0 until GAP_BUCKETS - 1).joinToString(",") { "gap_lt_${1L shl it}ms" } + ",gap_ge_${1L shl (GAP_BUCKETS - 2)}ms" + "\n")
+            for (direction in 0..1) for (type in types(direction)) {
+                val bytes = type.bytes.sum()
+                w.write("${directionNames[direction]},${ReplayAnalyzer.packetName(type.id)},${type.count.sum()},$bytes,${(bytes / elapsed).toLong()},")
+                w.write("%.1f,".format(Locale.ROOT, type.meanGap(now)))
+                w.write(type.gaps(now).joinToString(",") + "\n")
+            }
+        }
+        dir.child("timeline.csv").writer(false).use { w ->
+            w.write("seconds_ago,in_bytes,out_bytes\n")
+            val now = Time.nanos()
+            for (ago in WINDOW - 1 downTo 1) w.write("$ago,${rolling[IN].bytesAt(now, ago)},${rolling[OUT].bytesAt(now, ago)}\n")
+        }
+        Log.info("Net telemetry exported: @", dir.absolutePath())
+        return dir
+    }
+}
@@ -0,0 +1,132 @@
+package mindustryX.features
+
+import arc.Events
+import arc.util.Reflect
+import arc.util.Time
+import mindustry.Vars
+import mindustry.game.EventType.ResetEvent
+import mindustry.gen.ClientSnapshotCallPacket
+import mindustry.gen.StateSnapshotCallPacket
+import mindustry.net.NetProvider
+import mindustry.net.Packet
+
+/**
+ * 客户端发往服务器的数据包：可靠性选择与同一帧内的合并。由Net.send调用，只在主线程使用。
+ *
+ * 自适应模式下，游戏标记为可靠的数据包(建造、聊天等)仍走TCP，不可靠的数据包(快照、输入)默认走UDP，
+ * 只有UDP丢包严重且延迟较低时才改用TCP，避免在一般的丢包下被重传阻塞。
+ * 丢包率由服务器StateSnapshot(每个同步间隔一次，不可靠)的到达间隔估计。
+ *
+ * 同一帧内的客户端快照只发送最后一个，在[flush]时(netClient更新之后)发出。
+ * 其他不可靠数据包(插件、逻辑数据等)同一id下内容各不相同，不能合并，直接发送。
+ */
+object OutboundSync {
+    val adaptive = SettingsV2.CheckPref("debug.adaptiveSync", false)
+
+    /** 切换到TCP/切回UDP的丢包率阈值 */
+    private const val LOSS_HIGH = 0.5f
+    private const val LOSS_LOW = 0.25f
+
+    /** 超过该延迟时TCP重传代价过高，不切换 */
+    private const val MAX_RTT = 250
+
+    /** 超过该倍数的间隔视为暂停(加载、切后台)，不计入丢包 */
+    private const val MAX_MISSING = 10
+    private const val GAP_SAMPLES = 32
+    private const val DECAY = 0.95f
+
+    /** 估计的丢包率 */
+    var loss = 0f
+        private set
+
+    /** 不可靠数据包当前是否改用TCP */
+    var useReliable = false
+        private set
+    var coalesced = 0L
+        private set
+
+    private val provider by lazy { Reflect.get<NetProvider>(Vars.net, "provider") }
+
+    //本帧待发送的客户端快照
+    private var deferred: Packet? = null
+
+    private val gaps = LongArray(GAP_SAMPLES)
+    private val sortedGaps = LongArray(GAP_SAMPLES)
+    private var gapCount = 0
+    private var lastSnapshot = 0L
+    private var missed = 0f
+    private var received = 0f
+
+    @JvmStatic
+    fun init() {
+        Events.on(ResetEvent::class.java) {
+            deferred = null
+            gapCount = 0
+            lastSnapshot = 0
+            missed = 0f
+            received = 0f
+            loss = 0f
+            useReliable = false
+        }
+    }
+
+    /**
+     * 在Net.send发送到服务器前调用
+     * @return true表示已延迟到[flush]发送
+     */
+    @JvmStatic
+    fun defer(packet: Any, reliable: Boolean): Boolean {
+        //只合并后一个完全取代前一个的数据包
+        if (reliable || !adaptive.get() || packet !is ClientSnapshotCallPacket) return false
+        if (deferred != null) coalesced++
+        deferred = packet
+        return true
+    }
+
+    @JvmStatic
+    fun reliable(packet: Any, reliable: Boolean): Boolean {
+        if (reliable) return true
+        if (!adaptive.get()) return LogicExt.reliableSync.get()
+        return useReliable
+    }
+
+    /** 在netClient更新之后调用 */
+    @JvmStatic
+    fun flush() {
+        val packet = deferred ?: return
+        deferred = null
+        if (Vars.net.client()) provider.sendClient(packet, reliable(packet, false))
+    }
+
+    /** 收到服务器数据包时调用 */
+    @JvmStatic
+    fun onReceive(packet: Packet) {
+        if (packet !is StateSnapshotCallPacket) return
+        val now = Time.nanos()
+        val last = lastSnapshot
+        lastSnapshot = now
+        if (last == 0L) return
+        val gap = now - last
+        gaps[gapCount++ % GAP_SAMPLES] = gap
+        if (gapCount < 8) return
+        //间隔的中位数作为服务器的同步间隔，不受偶尔的丢包影响
+        val n = minOf(gapCount, GAP_SAMPLES)
+        System.arraycopy(gaps, 0, sortedGaps, 0, n)
+        sortedGaps.sort(0, n)
+        val interval = sortedGaps[n / 2].coerceAtLeast(1)
+        val missing = ((gap + interval / 2) / interval - 1).toInt()
+        if (missing > MAX_MISSING) return
+        //指数衰减的收到与丢失数量
+        missed = missed * DECAY + missing.coerceAtLeast(0)
+        received = received * DECAY + 1
+        loss = missed / (missed + received)
+        useReliable = if (useReliable) loss > LOSS_LOW else loss > LOSS_HIGH && Vars.netClient.ping < MAX_RTT
+    }
+
+    /** 用于DebugUtil */
+    @JvmStatic
+    fun stats(): String {
+        if (!adaptive.get()) return if (LogicExt.reliableSync.get()) "TCP" else "-"
+        return "loss ${(loss * 100).toInt()}% rtt ${Vars.netClient.ping}ms ${if (useReliable) "TCP" else "UDP"} coalesced $coalesced"
+    }
+}
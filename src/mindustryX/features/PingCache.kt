@@ -0,0 +1,187 @@
+package mindustryX.features
+
+import arc.net.dns.ArcDns
+import arc.util.Log
+import arc.util.Timer
+import mindustry.Vars
+import mindustry.net.Host
+import mindustry.net.NetworkIO
+import java.io.DataInputStream
+import java.io.DataOutputStream
+import java.net.InetAddress
+import java.nio.ByteBuffer
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicBoolean
+
+/**
+ * [PingService]的持久化缓存：服务器查询结果、域名解析与SRV记录。
+ * 过期但仍在[HOST_STALE]/[DNS_STALE]内的条目直接使用，同时在后台刷新，供下次打开服务器列表使用；
+ * 过期的查询结果由服务器列表标注缓存时长，见[PingService.staleMark]。
+ * 查询结果保存原始响应，读取时重新解析。
+ */
+object PingCache {
+    val enable = SettingsV2.CheckPref("pingCache", true)
+
+    private const val HOST_FRESH = 30_000L
+    private const val HOST_STALE = 24 * 60 * 60_000L
+    private const val DNS_FRESH = 60 * 60_000L
+    private const val DNS_STALE = 7 * 24 * 60 * 60_000L
+    private const val FILE_VERSION = 1
+
+    class HostEntry(val time: Long, val ping: Int, val address: String, val port: Int, val data: ByteArray) {
+        val fresh get() = System.currentTimeMillis() - time < HOST_FRESH
+
+        /** 缓存时长，如5m、3h */
+        fun age(): String {
+            val minutes = ((System.currentTimeMillis() - time) / 60_000).coerceAtLeast(1)
+            return if (minutes < 60) "${minutes}m" else "${minutes / 60}h"
+        }
+
+        fun host(): Host = NetworkIO.readServerData(ping, address, ByteBuffer.wrap(data)).also { it.port = port }
+    }
+
+    private class Entry<T>(val time: Long, val value: T) {
+        val fresh get() = System.currentTimeMillis() - time < DNS_FRESH
+    }
+
+    private val file by lazy { Vars.dataDirectory.child("ping_cache.bin") }
+    private val hosts = ConcurrentHashMap<String, HostEntry>()
+    private val dns = ConcurrentHashMap<String, Entry<String>>()
+    private val srv = ConcurrentHashMap<String, Entry<List<Pair<String, Int>>>>()
+    private val refreshing = ConcurrentHashMap.newKeySet<String>()
+    private val saveScheduled = AtomicBoolean()
+    private val loaded by lazy { load() }
+
+    /** 未过期太久的查询结果 */
+    fun host(key: String): HostEntry? {
+        loaded
+        val entry = hosts[key] ?: return null
+        return if (System.currentTimeMillis() - entry.time < HOST_STALE) entry else null
+    }
+
+    fun putHost(key: String, ping: Int, address: String, port: Int, data: ByteArray) {
+        if (!enable.get()) return
+        //先读取文件，否则保存时会丢失之前的条目
+        loaded
+        hosts[key] = HostEntry(System.currentTimeMillis(), ping, address, port, data)
+        scheduleSave()
+    }
+
+    fun removeHost(key: String) {
+        if (!enable.get()) return
+        loaded
+        if (hosts.remove(key) != null) scheduleSave()
+    }
+
+    /** 解析域名，有缓存时不阻塞 */
+    fun resolve(address: String): InetAddress {
+        if (!enable.get()) return InetAddress.getByName(address)
+        val value = cached(dns, "dns:$address") { InetAddress.getByName(address).hostAddress }
+        return InetAddress.getByName(value)
+    }
+
+    fun srvRecords(domain: String): List<Pair<String, Int>> {
+        if (!enable.get()) return lookupSrv(domain)
+        return cached(srv, "srv:$domain") { lookupSrv(domain) }
+    }
+
+    private fun lookupSrv(domain: String) = ArcDns.getSrvRecords(domain).map { it.target to it.port }
+
+    private fun <T> cached(map: ConcurrentHashMap<String, Entry<T>>, key: String, lookup: () -> T): T {
+        loaded
+        val entry = map[key]
+        if (entry != null && System.currentTimeMillis() - entry.time < DNS_STALE) {
+            if (!entry.fresh && refreshing.add(key)) Vars.mainExecutor.submit {
+                try {
+                    map[key] = Entry(System.currentTimeMillis(), lookup())
+                    scheduleSave()
+                } catch (e: Exception) {
+                    //保留旧值
+                } finally {
+                    refreshing.remove(key)
+                }
+            }
+            return entry.value
+        }
+        val value = lookup()
+        map[key] = Entry(System.currentTimeMillis(), value)
+        scheduleSave()
+        return value
+    }
+
+    /** 合并短时间内的修改，延迟写入 */
+    private fun scheduleSave() {
+        if (!saveScheduled.compareAndSet(false, true)) return
+        Timer.schedule({
+            saveScheduled.set(false)
+            Vars.mainExecutor.submit(::save)
+        }, 5f)
+    }
+
+    @Synchronized
+    private fun save() = try {
+        val now = System.currentTimeMillis()
+        DataOutputStream(file.write(false, 8192)).use { out ->
+            out.writeInt(FILE_VERSION)
+            val hosts = hosts.entries.filter { now - it.value.time < HOST_STALE }
+            out.writeInt(hosts.size)
+            for ((key, e) in hosts) {
+                out.writeUTF(key)
+                out.writeLong(e.time)
+                out.writeInt(e.ping)
+                out.writeUTF(e.address)
+                out.writeInt(e.port)
+                out.writeShort(e.data.size)
+                out.write(e.data)
+            }
+            val dns = dns.entries.filter { now - it.value.time < DNS_STALE }
+            out.writeInt(dns.size)
+            for ((key, e) in dns) {
+                out.writeUTF(key)
+                out.writeLong(e.time)
+                out.writeUTF(e.value)
+            }
+            val srv = srv.entries.filter { now - it.value.time < DNS_STALE }
+            out.writeInt(srv.size)
+            for ((key, e) in srv) {
+                out.writeUTF(key)
+                out.writeLong(e.time)
+                out.writeShort(e.value.size)
+                for ((target, port) in e.value) {
+                    out.writeUTF(target)
+                    out.writeInt(port)
+                }
+            }
+        }
+    } catch (e: Exception) {
+        Log.warn("Failed to save ping cache", e)
+    }
+
+    private fun load() {
+        if (!file.exists()) return
+        try {
+            DataInputStream(file.read(8192)).use { input ->
+                if (input.readInt() != FILE_VERSION) return
+                repeat(input.readInt()) {
+                    val key = input.readUTF()
+                    val time = input.readLong()
+                    val ping = input.readInt()
+                    val address = input.readUTF()
+                    val port = input.readInt()
+                    val data = ByteArray(input.readUnsignedShort()).also { input.readFully(it) }
+                    hosts[key] = HostEntry(time, ping, address, port, data)
+                }
+                repeat(input.readInt()) {
+                    dns[input.readUTF()] = Entry(input.readLong(), input.readUTF())
+                }
+                repeat(input.readInt()) {
+                    val key = input.readUTF()
+                    val time = input.readLong()
+                    srv[key] = Entry(time, List(input.readUnsignedShort()) { input.readUTF() to input.readInt() })
+                }
+            }
+        } catch (e: Exception) {
+            Log.warn("Failed to load ping cache", e)
+        }
+    }
+}
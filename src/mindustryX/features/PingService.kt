@@ -2,85 +2,224 @@ package mindustryX.features
 
 import arc.Core
 import arc.func.Cons
-import arc.net.dns.ArcDns
 import arc.util.Log
 import arc.util.Threads
-import arc.util.Time
-import arc.util.Timer
 import mindustry.Vars
+import mindustry.gen.Iconc
 import mindustry.net.Host
 import mindustry.net.NetworkIO
-import java.net.DatagramPacket
-import java.net.DatagramSocket
-import java.net.InetAddress
+import java.net.InetSocketAddress
 import java.nio.ByteBuffer
+import java.nio.channels.DatagramChannel
+import java.nio.channels.SelectionKey
+import java.nio.channels.Selector
 import java.util.*
+import java.util.concurrent.ConcurrentLinkedQueue
 import java.util.concurrent.TimeoutException
 import java.util.concurrent.atomic.AtomicBoolean
 
+/**
+ * UDP服务器查询(ping)。
+ * 单线程NIO：非阻塞DatagramChannel+Selector，按地址哈希匹配响应，时间轮处理超时，发送限速避免突发丢包。
+ * 结果与域名解析缓存在[PingCache]中。
+ */
 object PingService {
-    private class Req(val addr: InetAddress, val port: Int, val handled: AtomicBoolean, val callback: Cons<Host>) {
-        val time = Time.millis()
-        fun handle(packet: DatagramPacket) {
-            val buffer = ByteBuffer.wrap(packet.data)
-            val host = NetworkIO.readServerData(Time.timeSinceMillis(time).toInt(), addr.hostAddress, buffer)
-            host.port = port
-            if (handled.compareAndSet(false, true))
-                Core.app.post { callback.get(host) }
+    private const val TIMEOUT = 2_000_000_000L
+    private const val TICK = 50_000_000L
+    private const val WHEEL_SIZE = 64 //需大于TIMEOUT/TICK
+    /** 两次发送的最小间隔，约1000个/秒 */
+    private const val SEND_INTERVAL = 1_000_000L
+    private const val SEND_BURST = 16
+
+    /** 同一次[pingHost]的所有请求(包括SRV记录)，任一响应即完成，全部超时才失败 */
+    private class Group(val key: String, val valid: Cons<Host>, val invalid: Cons<Exception>, var remaining: Int) {
+        val handled = AtomicBoolean(false)
+    }
+
+    private class Req(val addr: InetSocketAddress, val group: Group) {
+        var sendTime = 0L
+        var done = false
+    }
+
+    private val outgoing = ConcurrentLinkedQueue<Req>()
+
+    //以下只在服务线程访问
+    private val pending = HashMap<InetSocketAddress, ArrayDeque<Req>>()
+    private val wheel = Array(WHEEL_SIZE) { ArrayList<Req>() }
+    /** 下一个待处理的tick */
+    private var wheelTick = -1L
+    private var sendTokens = SEND_BURST
+    private var lastRefill = 0L
+    private val requestBuf: ByteBuffer = ByteBuffer.wrap(byteArrayOf(-2, 1))
+    private val responseBuf: ByteBuffer = ByteBuffer.allocate(512)
+
+    private val selector by lazy {
+        val selector = Selector.open()
+        val channel = DatagramChannel.open().apply {
+            configureBlocking(false)
+            bind(null)
+            register(selector, SelectionKey.OP_READ)
         }
+        Threads.daemon("PingService") {
+            while (true) {
+                try {
+                    loop(channel)
+                } catch (e: Exception) {
+                    Log.warn("PingService error", e)
+                }
+            }
+        }
+        selector
+    }
+
+    private fun loop(channel: DatagramChannel) {
+        val now = System.nanoTime()
+        send(channel, now)
+        expire(now)
+        when {
+            outgoing.isNotEmpty() -> selector.select(maxOf(1L, SEND_INTERVAL / 1_000_000))
+            pending.isNotEmpty() -> selector.select(TICK / 1_000_000)
+            else -> selector.select() //空闲时等待pingHost唤醒
+        }
+        selector.selectedKeys().clear()
+        while (true) {
+            responseBuf.clear()
+            val from = channel.receive(responseBuf) as InetSocketAddress? ?: break
+            val time = System.nanoTime()
+            responseBuf.flip()
+            receive(from, time)
+        }
+    }
 
-        fun send() {
-            synchronized(requests) {
-                requests.add(this)
+    private fun send(channel: DatagramChannel, now: Long) {
+        if (lastRefill == 0L) lastRefill = now
+        val refill = ((now - lastRefill) / SEND_INTERVAL).toInt()
+        if (refill > 0) {
+            sendTokens = minOf(SEND_BURST, sendTokens + refill)
+            lastRefill += refill * SEND_INTERVAL
+        }
+        while (sendTokens > 0) {
+            val req = outgoing.peek() ?: break
+            requestBuf.clear()
+            val sent = try {
+                channel.send(requestBuf, req.addr)
+            } catch (e: Exception) {
+                //地址不可达或未解析：放弃该请求，不阻塞队列
+                outgoing.poll()
+                fail(req, e)
+                continue
             }
-            socket.send(DatagramPacket(byteArrayOf(-2, 1), 2, addr, port))
+            //发送缓冲区满，下次再试
+            if (sent == 0) break
+            outgoing.poll()
+            sendTokens--
+            req.sendTime = System.nanoTime()
+            pending.getOrPut(req.addr) { ArrayDeque(1) }.add(req)
+            wheel[((req.sendTime + TIMEOUT) / TICK % WHEEL_SIZE).toInt()].add(req)
         }
+        if (outgoing.isEmpty()) lastRefill = now
     }
 
-    private val requests = LinkedList<Req>()
-    private val socket by lazy {
-        DatagramSocket().also { socket ->
-            Threads.daemon("PingService") {
-                while (true) {
-                    val packet = DatagramPacket(ByteArray(512), 512)
-                    socket.receive(packet)
-                    val req = synchronized(requests) {
-                        requests.removeFirst { it.addr == packet.address && it.port == packet.port && !it.handled.get() }
-                    } ?: continue
-                    kotlin.runCatching { req.handle(packet) }.onFailure {
-                        Log.warn("Failed to handle ping request", it)
-                    }
+    private fun receive(from: InetSocketAddress, time: Long) {
+        val queue = pending[from] ?: return
+        val req = queue.poll() ?: return
+        if (queue.isEmpty()) pending.remove(from)
+        if (req.group.handled.get()) {
+            req.done = true
+            req.group.remaining--
+            return
+        }
+        //RTT以纳秒计时，Host.ping为毫秒
+        val ping = ((time - req.sendTime + 500_000) / 1_000_000).toInt()
+        val data = ByteArray(responseBuf.remaining()).also { responseBuf.get(it) }
+        val address = req.addr.address.hostAddress
+        val host = try {
+            NetworkIO.readServerData(ping, address, ByteBuffer.wrap(data)).also { it.port = req.addr.port }
+        } catch (e: Exception) {
+            Log.warn("Failed to handle ping request", e)
+            //按失败处理，同组最后一个请求时回调invalid
+            fail(req, e)
+            return
+        }
+        req.done = true
+        req.group.remaining--
+        PingCache.putHost(req.group.key, ping, address, req.addr.port, data)
+        if (req.group.handled.compareAndSet(false, true))
+            Core.app.post { req.group.valid.get(host) }
+    }
+
+    private fun expire(now: Long) {
+        val current = now / TICK
+        //没有等待中的请求时，时间轮中只剩已完成的请求，可以直接跳过
+        if (wheelTick < 0 || pending.isEmpty()) wheelTick = current
+        //只处理已经结束的tick，之后槽中未完成的请求必然已超时(除非属于下一圈)
+        while (wheelTick < current) {
+            val slot = wheel[(wheelTick++ % WHEEL_SIZE).toInt()]
+            if (slot.isEmpty()) continue
+            val iter = slot.iterator()
+            while (iter.hasNext()) {
+                val req = iter.next()
+                if (!req.done && req.sendTime + TIMEOUT > now) continue //属于下一圈
+                iter.remove()
+                if (req.done) continue
+                pending[req.addr]?.let { queue ->
+                    queue.remove(req)
+                    if (queue.isEmpty()) pending.remove(req.addr)
                 }
+                fail(req, TimeoutException())
             }
         }
     }
 
+    /** 请求失败，同组的请求全部失败时回调invalid */
+    private fun fail(req: Req, e: Exception) {
+        req.done = true
+        val group = req.group
+        if (--group.remaining == 0 && group.handled.compareAndSet(false, true)) {
+            PingCache.removeHost(group.key)
+            Core.app.post { group.invalid.get(e) }
+        }
+    }
+
+    /** 在后台线程调用，域名解析可能阻塞 */
     fun pingHost(address: String, port: Int, valid: Cons<Host>, invalid: Cons<Exception>) {
-        val handled = AtomicBoolean(false)
-        Req(InetAddress.getByName(address), port, handled, valid).send()
-        if (port == Vars.port) {
-            for (record in ArcDns.getSrvRecords("_mindustry._tcp.$address")) {
-                Req(InetAddress.getByName(record.target), record.port, handled, valid).send()
+        val key = "$address:$port"
+        val cached = if (PingCache.enable.get()) PingCache.host(key) else null
+        if (cached != null) {
+            val host = cached.host()
+            //过期的结果由服务器列表标注缓存时间，不修改Host本身
+            val age = if (cached.fresh) null else cached.age()
+            Core.app.post {
+                if (age != null) staleAges[host] = age
+                valid.get(host)
             }
+            if (cached.fresh) return
+            //先显示缓存的结果，后台刷新供下次使用；回调只能调用一次(社区服务器列表会重复添加)
+            ping(key, address, port, {}, {})
+            return
         }
-        Timer.schedule({
-            synchronized(requests) {
-                requests.removeAll { it.handled == handled }
-            }
-            if (handled.compareAndSet(false, true))
-                Core.app.post { invalid.get(TimeoutException()) }
-        }, 2f)
+        ping(key, address, port, valid, invalid)
     }
 
-    private inline fun <T> LinkedList<T>.removeFirst(f: (T) -> Boolean): T? {
-        val iter = iterator()
-        while (iter.hasNext()) {
-            val it = iter.next()
-            if (f(it)) {
-                iter.remove()
-                return it
+    /** 来自过期缓存的Host及其缓存时长，只在主线程访问 */
+    private val staleAges = WeakHashMap<Host, String>()
+
+    /** 供服务器列表使用：来自过期缓存时返回标注，否则为空 */
+    @JvmStatic
+    fun staleMark(host: Host): String {
+        val age = staleAges[host] ?: return ""
+        return "[gray]${Iconc.refresh}$age[] "
+    }
+
+    private fun ping(key: String, address: String, port: Int, valid: Cons<Host>, invalid: Cons<Exception>) {
+        val addresses = mutableListOf(InetSocketAddress(PingCache.resolve(address), port))
+        if (port == Vars.port) {
+            for ((target, srvPort) in PingCache.srvRecords("_mindustry._tcp.$address")) {
+                addresses.add(InetSocketAddress(PingCache.resolve(target), srvPort))
             }
         }
-        return null
+        val group = Group(key, valid, invalid, addresses.size)
+        addresses.forEach { outgoing.add(Req(it, group)) }
+        selector.wakeup()
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,189 @@
+package mindustryX.features;
+
+import arc.*;
+import arc.struct.*;
+import arc.util.*;
+import mindustry.game.EventType.*;
+import mindustry.gen.*;
+import mindustry.world.blocks.power.*;
+import mindustryX.features.SettingsV2.*;
+
+/**
+ * 电网的增量维护。
+ * 合并：Building.updatePowerGraph把相邻电网并入最大的一个(按大小合并)。
+ * 拆分：移除建筑时从各个相邻建筑同时轮流BFS，相遇的搜索用并查集合并；
+ * 只剩一组搜索未结束时停止，已结束的各组是断开的部分，移到新电网，未结束的一组保留原电网。
+ * 耗时与断开部分的大小成正比，而不是整个电网。
+ * 只在主线程使用。
+ */
+public class PowerGraphIndex{
+    public static final CheckPref enable = new CheckPref("debug.powerGraphSplit", true);
+
+    //统计，用于DebugUtil
+    public static long merges, mergedNodes, removals, splits, movedNodes, visitedNodes, nanos;
+
+    private static final Seq<Building> neighbors = new Seq<>(), links = new Seq<>();
+    private static final IntIntMap visited = new IntIntMap();
+    private static final Seq<Queue<Building>> queues = new Seq<>();
+    private static int[] parent = new int[16], size = new int[16];
+
+    /** 切换地图时清空统计 */
+    public static void init(){
+        Events.on(ResetEvent.class, e -> merges = mergedNodes = removals = splits = movedNodes = visitedNodes = nanos = 0);
+    }
+
+    public static boolean enabled(){
+        return enable.get();
+    }
+
+    /** 由Building.updatePowerGraph调用 */
+    public static void onMerge(PowerGraph into, PowerGraph graph){
+        if(into == graph) return;
+        merges++;
+        mergedNodes += graph.all.size;
+    }
+
+    private static int find(int i){
+        while(parent[i] != i){
+            parent[i] = parent[parent[i]];
+            i = parent[i];
+        }
+        return i;
+    }
+
+    private static void union(int a, int b){
+        a = find(a);
+        b = find(b);
+        if(a == b) return;
+        if(size[a] < size[b]){
+            int t = a;
+            a = b;
+            b = t;
+        }
+        parent[b] = a;
+        size[a] += size[b];
+    }
+
+    /** 由PowerGraph.remove调用，此时tile已从graph中移除 */
+    public static void split(PowerGraph graph, Building tile){
+        long start = Time.nanos();
+        removals++;
+        neighbors.clear();
+        for(Building other : tile.getPowerConnections(links)){
+            if(other.power != null && other.power.graph == graph && !neighbors.contains(other, true)) neighbors.add(other);
+        }
+        //最多一个相邻建筑时，剩余部分仍然连通
+        int k = neighbors.size;
+        if(k <= 1){
+            nanos += Time.timeSinceNanos(start);
+            return;
+        }
+
+        if(parent.length < k){
+            parent = new int[k];
+            size = new int[k];
+        }
+        visited.clear();
+        while(queues.size < k) queues.add(new Queue<>());
+        for(int i = 0; i < k; i++){
+            parent[i] = i;
+            size[i] = 1;
+            Building b = neighbors.get(i);
+            visited.put(b.pos(), i);
+            queues.get(i).addLast(b);
+        }
+
+        //轮流扩展，直到最多一组仍有未访问的节点
+        while(liveGroups(k) > 1){
+            for(int i = 0; i < k; i++){
+                Queue<Building> queue = queues.get(i);
+                if(queue.isEmpty()) continue;
+                Building child = queue.removeFirst();
+                visitedNodes++;
+                for(Building next : child.getPowerConnections(links)){
+                    if(next == tile || next.power == null || next.power.graph != graph) continue;
+                    int owner = visited.get(next.pos(), -1);
+                    if(owner == -1){
+                        visited.put(next.pos(), i);
+                        queue.addLast(next);
+                        size[find(i)]++;
+                    }else if(find(owner) != find(i)){
+                        union(owner, i);
+                    }
+                }
+            }
+        }
+
+        //未结束的一组保留原电网；全部结束时保留最大的一组
+        int keep = -1;
+        for(int i = 0; i < k; i++){
+            if(!queues.get(i).isEmpty()){
+                keep = find(i);
+                break;
+            }
+        }
+        if(keep == -1){
+            for(int i = 0; i < k; i++){
+                int root = find(i);
+                if(keep == -1 || size[root] > size[keep]) keep = root;
+            }
+        }
+        if(countRoots(k) > 1){
+            splits++;
+            moveGroups(graph, keep);
+        }
+        for(int i = 0; i < k; i++) queues.get(i).clear();
+        visited.clear();
+        nanos += Time.timeSinceNanos(start);
+    }
+
+    private static int liveGroups(int k){
+        int first = -1;
+        for(int i = 0; i < k; i++){
+            if(queues.get(i).isEmpty()) continue;
+            int root = find(i);
+            if(first == -1) first = root;
+            else if(root != first) return 2;
+        }
+        return first == -1 ? 0 : 1;
+    }
+
+    private static int countRoots(int k){
+        int roots = 0;
+        for(int i = 0; i < k; i++){
+            if(find(i) == i) roots++;
+        }
+        return roots;
+    }
+
+    /** 把除keep外的各组移到新电网 */
+    private static void moveGroups(PowerGraph graph, int keep){
+        IntMap<PowerGraph> graphs = new IntMap<>();
+        int moved = 0;
+        for(var entry : visited){
+            int root = find(entry.value);
+            if(root == keep) continue;
+            Building build = mindustry.Vars.world.build(entry.key);
+            if(build == null || build.power == null || build.power.graph != graph) continue;
+            moved++;
+            PowerGraph target = graphs.get(root);
+            if(target == null) graphs.put(root, target = new PowerGraph());
+            //只改变所属电网，之后一次遍历从原电网的列表中删除
+            build.power.graph = null;
+            target.add(build);
+        }
+        movedNodes += moved;
+        //一次遍历删除已移走的建筑
+        graph.all.removeAll(b -> b.power.graph != graph);
+        graph.producers.removeAll(b -> b.power.graph != graph);
+        graph.consumers.removeAll(b -> b.power.graph != graph);
+        graph.batteries.removeAll(b -> b.power.graph != graph);
+        //没有发电的用电器立即断电
+        for(PowerGraph target : graphs.values()) target.update();
+    }
+
+    /** 用于DebugUtil */
+    public static String stats(){
+        return Strings.format("merge @(@) remove @ split @ moved @ visited @ @ms", merges, mergedNodes, removals, splits, movedNodes, visitedNodes, Strings.fixed(nanos / 1e6f, 2));
+    }
+}
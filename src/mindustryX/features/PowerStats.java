@@ -0,0 +1,117 @@
+package mindustryX.features;
+
+import arc.*;
+import arc.math.*;
+import arc.struct.*;
+import arc.util.*;
+import mindustry.game.*;
+import mindustry.game.EventType.*;
+import mindustry.gen.*;
+import mindustry.world.blocks.power.*;
+
+import java.util.*;
+
+import static mindustry.Vars.state;
+
+/**
+ * 按队伍汇总的电力统计。界面与脚本通过{@link #get(Team)}读取，每帧最多遍历一次电网，不再各自遍历；
+ * 没有界面读取时不逐帧遍历，只在每秒记录电力平衡与储电时遍历一次，保存最近{@link #HISTORY}秒，用于绘制曲线。
+ */
+public class PowerStats{
+    public static final int HISTORY = 60;
+    private static final float HISTORY_INTERVAL = 60f;
+
+    public static class TeamPower{
+        /** 每帧的值，与PowerGraph.getLast*一致 */
+        public float balance, stored, capacity, produced, needed;
+        public int graphs;
+        /** 环形缓冲，{@link #history(float[], int)}按时间顺序读取 */
+        public final float[] balanceHistory = new float[HISTORY], storedHistory = new float[HISTORY];
+        /** 已记录的数量，超过HISTORY后覆盖最早的 */
+        public int historySize;
+
+        public float balancePerSecond(){
+            return balance * Time.toSeconds;
+        }
+
+        public float satisfaction(){
+            return produced == 0 || needed == 0 ? 1 : Mathf.clamp(produced / needed);
+        }
+
+        /** @param ago 0为最近一次记录 */
+        public float history(float[] ring, int ago){
+            return ring[Math.floorMod(historySize - 1 - ago, HISTORY)];
+        }
+
+        private void clear(){
+            balance = stored = capacity = produced = needed = 0;
+            graphs = 0;
+        }
+
+        private void record(){
+            int i = historySize % HISTORY;
+            balanceHistory[i] = balancePerSecond();
+            storedHistory[i] = stored;
+            historySize++;
+        }
+    }
+
+    private static final TeamPower[] teams = new TeamPower[Team.all.length];
+    private static final TeamPower empty = new TeamPower();
+    /** 本帧有电网的队伍 */
+    private static final Seq<TeamPower> active = new Seq<>(false, 8);
+    private static long lastSample = -1;
+    /** 上次遍历电网时的帧 */
+    private static long collectedFrame = -1;
+
+    public static void init(){
+        Events.run(Trigger.update, PowerStats::update);
+        Events.on(ResetEvent.class, e -> {
+            active.clear();
+            Arrays.fill(teams, null);
+            lastSample = -1;
+            collectedFrame = -1;
+        });
+    }
+
+    /** @return 该队伍的统计，没有电网时为全0 */
+    public static TeamPower get(Team team){
+        if(state.isGame()) collect();
+        TeamPower power = teams[team.id];
+        return power == null ? empty : power;
+    }
+
+    private static void update(){
+        if(!state.isGame()) return;
+        //按游戏时间记录，暂停时不记录
+        long sample = (long)(state.tick / HISTORY_INTERVAL);
+        if(sample == lastSample) return;
+        lastSample = sample;
+        collect();
+        for(TeamPower power : teams){
+            if(power != null) power.record();
+        }
+    }
+
+    private static void collect(){
+        long frame = Core.graphics.getFrameId();
+        if(frame == collectedFrame) return;
+        collectedFrame = frame;
+        for(TeamPower power : active) power.clear();
+        active.clear();
+        Groups.powerGraph.each(item -> {
+            PowerGraph graph = item.graph();
+            if(graph.all.isEmpty()) return;
+            Team team = graph.all.first().team;
+            TeamPower power = teams[team.id];
+            if(power == null) teams[team.id] = power = new TeamPower();
+            if(power.graphs == 0) active.add(power);
+            power.graphs++;
+            power.balance += graph.getPowerBalance();
+            power.stored += graph.getLastPowerStored();
+            power.capacity += graph.getLastCapacity();
+            power.produced += graph.getLastPowerProduced();
+            power.needed += graph.getLastPowerNeeded();
+        });
+    }
+}
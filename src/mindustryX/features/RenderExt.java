@@ -3,6 +3,7 @@ package mindustryX.features;
 import arc.*;
 import arc.graphics.*;
 import arc.graphics.g2d.*;
+import arc.graphics.g2d.MySpriteBatch.*;
 import arc.graphics.g2d.TextureAtlas.*;
 import arc.math.*;
 import arc.math.geom.*;
@@ -42,7 +43,7 @@ public class RenderExt{
     public static float overdriveZoneTransparency, mendZoneTransparency;
     public static boolean logicDisplayNoBorder, arcDrillMode;
     public static int blockRenderLevel;
-    public static boolean renderSort;
+    public static boolean renderSort, legacyRenderSort, multithreadRenderSort, multithreadRenderRecord, compactVertices;
     public static boolean massDriverLine;
     public static int massDriverLineInterval;
     public static boolean drawBars, drawBarsMend;
@@ -67,6 +68,10 @@ public class RenderExt{
     public static final SettingsV2.CheckPref deadOverlay = new CheckPref("gameUI.deadOverlay");
 
     public static final SettingsV2.CheckPref renderSort0 = new CheckPref("debug.renderSort");
+    public static final SettingsV2.CheckPref legacyRenderSort0 = new CheckPref("debug.legacyRenderSort");
+    public static final SettingsV2.CheckPref multithreadRenderSort0 = new CheckPref("debug.multithreadRenderSort");
+    public static final SettingsV2.CheckPref multithreadRenderRecord0 = new CheckPref("debug.multithreadRenderRecord");
+    public static final SettingsV2.CheckPref compactVertices0 = new CheckPref("debug.compactVertices");
     public static final SettingsV2.CheckPref arcChoiceUiIcon0 = new CheckPref("block.arcChoiceUiIcon");
     public static final SliderPref hiddenItemTransparency0 = new SliderPref("block.hiddenItemTransparency", 0, 0, 100, 2, v -> v > 0 ? v + "%" : "关闭");
     public static final SliderPref overdriveZoneTransparency0 = new SliderPref("block.overdriveZoneTransparency", 0, 0, 100, 2, v -> v > 0 ? v + "%" : "关闭");
@@ -138,6 +143,11 @@ public class RenderExt{
             arcDrillMode = Core.settings.getBool("arcdrillmode");
             blockRenderLevel = blockRenderLevel0.get();
             renderSort = renderSort0.get();
+            legacyRenderSort = legacyRenderSort0.get();
+            multithreadRenderSort = multithreadRenderSort0.get();
+            multithreadRenderRecord = multithreadRenderRecord0.get();
+            compactVertices = compactVertices0.get();
+            if(Core.batch instanceof MySpriteBatchBase batch) batch.setCompactVertices(compactVertices);
             massDriverLine = Core.settings.getBool("mass_driver_line");
             massDriverLineInterval = Core.settings.getInt("mass_driver_line_interval");
             drawBars = Core.settings.getBool("blockBars");
@@ -154,6 +164,7 @@ public class RenderExt{
         Events.on(TileChangeEvent.class, RenderExt::onSetBlock);
         Events.on(ResetEvent.class, (e) -> {
             removePool.clear();
+            barRecord.builds.clear();
         });
 
         //Optimize white() for ui
@@ -190,6 +201,15 @@ public class RenderExt{
     }
 
     public static void onGroupDraw(Drawc t){
+        if(EntityProfiler.active){
+            long start = EntityProfiler.beginDraw();
+            drawGroupEntity(t);
+            EntityProfiler.endDraw(t, start);
+        }else drawGroupEntity(t);
+    }
+
+    private static void drawGroupEntity(Drawc t){
+        if(ReplayController.catchingUp) return;
         if(noBulletShow.get() && t instanceof Bulletc) return;
         if(!renderer.enableEffects && t instanceof EffectState) return;
         if(t instanceof Unitc u) hide:{
@@ -204,6 +224,15 @@ public class RenderExt{
     }
 
     public static void onBlockDraw(Tile tile, Block block, @Nullable Building build){
+        if(EntityProfiler.active){
+            long start = EntityProfiler.beginDraw();
+            drawBlock(tile, block, build);
+            EntityProfiler.endDraw(block, start);
+        }else drawBlock(tile, block, build);
+    }
+
+    private static void drawBlock(Tile tile, Block block, @Nullable Building build){
+        if(ReplayController.catchingUp) return;
         if(blockRenderLevel < 2) return;
         block.drawBase(tile);
         if(displayAllMessage && build instanceof MessageBuild){
@@ -220,7 +249,7 @@ public class RenderExt{
         }
         if(build != null && drawBars){
             Draw.z(Layer.turret + 4f);
-            drawBars(build);
+            if(!barRecord.add(build)) drawBars(build, null);
         }
         if(build instanceof BaseTurretBuild turretBuild){
             Draw.z(Layer.turret);
@@ -286,19 +315,59 @@ public class RenderExt{
         }
     }
 
-    private static void drawBars(Building build){
-        if(build.health / build.maxHealth < 0.9f && build.maxHealth > healthBarMinHealth.get())
-            drawBar(build, build.team.color, Pal.health, build.health / build.maxHealth);
+    /**
+     * 建筑血条等进度条：开启多线程记录时先收集，flushRequests时在多个线程中记录。
+     * 带文字的单位工厂类建筑仍在渲染线程绘制。
+     */
+    private static final BarRecord barRecord = new BarRecord();
+
+    private static class BarRecord extends ParallelRecord{
+        final Seq<Building> builds = new Seq<>(false, 256, Building.class);
+        float minHealth;
+
+        /** @return false表示不能并行记录，需直接绘制 */
+        boolean add(Building build){
+            if(!(Core.batch instanceof MySpriteBatch batch) || !batch.canRecordParallel()) return false;
+            if(build instanceof Reconstructor.ReconstructorBuild || build instanceof UnitAssembler.UnitAssemblerBuild || build instanceof UnitFactory.UnitFactoryBuild) return false;
+            if(builds.isEmpty()) batch.recordParallel(this);
+            builds.add(build);
+            return true;
+        }
+
+        @Override
+        public int size(){
+            minHealth = healthBarMinHealth.get();
+            return builds.size;
+        }
+
+        @Override
+        public void record(Recorder recorder, int index){
+            recorder.z(Layer.turret + 4f);
+            drawBars(builds.items[index], recorder);
+        }
+
+        @Override
+        public void end(){
+            builds.clear();
+        }
+    }
+
+    /** @param recorder 不为null时在工作线程记录，不绘制文字 */
+    private static void drawBars(Building build, @Nullable Recorder recorder){
+        float minHealth = recorder != null ? barRecord.minHealth : healthBarMinHealth.get();
+        if(build.health / build.maxHealth < 0.9f && build.maxHealth > minHealth)
+            drawBar(recorder, build, build.team.color, Pal.health, build.health / build.maxHealth);
         if(drawBarsMend){
             if(build instanceof MendProjector.MendBuild b){
                 var block = (MendProjector)build.block;
-                drawBar(build, Color.black, Pal.heal, b.charge / block.reload);
+                drawBar(recorder, build, Color.black, Pal.heal, b.charge / block.reload);
             }else if(build instanceof ForceProjector.ForceBuild b && b.buildup > 0){
                 var block = (ForceProjector)build.block;
                 float ratio = 1 - b.buildup / (block.shieldHealth + block.phaseShieldBoost * b.phaseHeat);
-                drawBar(build, Color.black, b.broken ? Pal.remove : Pal.stat, ratio);
+                drawBar(recorder, build, Color.black, b.broken ? Pal.remove : Pal.stat, ratio);
             }
         }
+        if(recorder != null) return;
         float buildRatio = -1, leftTime = 0;
         if(build instanceof Reconstructor.ReconstructorBuild b){
             buildRatio = b.fraction();
@@ -311,15 +380,27 @@ public class RenderExt{
             leftTime = b.currentPlan == -1 ? -1 : (((UnitFactory)build.block).plans.get(b.currentPlan).time - b.progress);
         }
         if(buildRatio >= 0){
-            drawBar(build, Color.black, Pal.accent, buildRatio);
+            drawBar(null, build, Color.black, Pal.accent, buildRatio);
             String progressT = Strings.format("[stat]@% | @s", (int)(Mathf.clamp(buildRatio, 0f, 1f) * 100), leftTime < 0 ? Iconc.cancel : Strings.fixed(leftTime / (60f * Vars.state.rules.unitBuildSpeed(build.team) * build.timeScale()), 0));
             FuncX.drawText(Tmp.v1.set(build).add(0, build.block.offset * 0.8f - 5f), progressT, 0.9f);
         }
     }
 
-    private static void drawBar(Building build, Color bg, Color fg, Float ratio){
+    private static void drawBar(@Nullable Recorder recorder, Building build, Color bg, Color fg, Float ratio){
         float x = build.x, size = build.block.size * tilesize * 0.5f;
         float x1 = x - size * 0.6f, x2 = x + size * 0.6f, y = build.y + size * 0.8f;
+        if(recorder != null){
+            //与Lines.line相同，两端各延长stroke/2
+            TextureRegion white = Core.atlas.white();
+            float x3 = Mathf.lerp(x1, x2, Mathf.clamp(ratio, 0f, 1f));
+            recorder.color(bg, 0.3f);
+            recorder.rect(white, (x1 + x2) / 2f, y, x2 - x1 + 4f, 4f);
+            if(x3 > x1){
+                recorder.color(fg, 0.6f);
+                recorder.rect(white, (x1 + x3) / 2f, y, x3 - x1 + 2f, 2f);
+            }
+            return;
+        }
         Draw.color(bg, 0.3f);
         Lines.stroke(4f);
         Lines.line(x1, y, x2, y);
@@ -0,0 +1,248 @@
+package mindustryX.features
+
+import arc.files.Fi
+import mindustry.net.Net
+import mindustry.net.Packet
+import mindustry.net.Streamable
+import java.io.EOFException
+import java.io.File
+import java.util.concurrent.ForkJoinPool
+import java.util.stream.Collectors
+
+/**
+ * 离线分析回放文件，不需要启动客户端。
+ * 用法: gradle core:replayAnalyze --args="[--json] [--out 目录] [--bucket 秒] [--threads n] <文件或目录>..."
+ *
+ * 默认只读取数据包头(有索引时直接读索引)，数据包内容保持未解码；
+ * 通过[register]按类型注册的分析器才会触发对应数据包的解码。
+ */
+object ReplayAnalyzer {
+    fun interface PacketAnalyzer {
+        fun accept(stats: Stats, info: ReplayData.PacketInfo, packet: Packet)
+    }
+
+    private val analyzers = mutableMapOf<Byte, MutableList<PacketAnalyzer>>()
+    private val packetNames = arrayOfNulls<String>(256)
+
+    /** 注册需要解码数据包的分析器，在[analyze]前调用 */
+    @JvmStatic
+    fun register(type: Class<out Packet>, analyzer: PacketAnalyzer) {
+        val id = (0 until 256).firstOrNull { runCatching { Net.newPacket<Packet>(it.toByte()).javaClass == type }.getOrDefault(false) }
+            ?: throw IllegalArgumentException("Unknown packet type: $type")
+        analyzers.getOrPut(id.toByte()) { mutableListOf() }.add(analyzer)
+    }
+
+    @JvmStatic
+    fun packetName(id: Byte): String {
+        packetNames[id.toInt() and 0xFF]?.let { return it }
+        val name = runCatching { Net.newPacket<Packet>(id).javaClass.simpleName }.getOrElse { "Packet#${id.toInt() and 0xFF}" }
+        packetNames[id.toInt() and 0xFF] = name
+        return name
+    }
+
+    private val snapshotTypes = arrayOfNulls<Boolean>(256)
+
+    /** 快照类数据包(xxSnapshot与WorldStream等Streamable)，统计其大小分布 */
+    private fun isSnapshot(id: Byte): Boolean {
+        snapshotTypes[id.toInt() and 0xFF]?.let { return it }
+        val value = packetName(id).endsWith("Snapshot") || runCatching { Net.newPacket<Packet>(id) is Streamable }.getOrDefault(false)
+        snapshotTypes[id.toInt() and 0xFF] = value
+        return value
+    }
+
+    class Stats(val file: String, private val bucketTicks: Float) {
+        var meta: ReplayData? = null
+        var formatVersion = 0
+        var keyframes = 0
+        var error: String? = null
+
+        /** 单位tick */
+        var duration = 0f
+        var packets = 0
+        var bytes = 0L
+        val typeCount = IntArray(256)
+        val typeBytes = LongArray(256)
+        var timelineBytes = LongArray(64)
+            private set
+        var timelinePackets = IntArray(64)
+            private set
+        var buckets = 0
+            private set
+        val snapshotSizes = mutableMapOf<Byte, MutableList<Int>>()
+
+        fun add(offset: Float, id: Byte, length: Int) {
+            packets++
+            bytes += length
+            typeCount[id.toInt() and 0xFF]++
+            typeBytes[id.toInt() and 0xFF] += length.toLong()
+            if (offset > duration) duration = offset
+            val bucket = (offset.coerceAtLeast(0f) / bucketTicks).toInt()
+            if (bucket >= timelineBytes.size) {
+                val size = maxOf(bucket + 1, timelineBytes.size * 2)
+                timelineBytes = timelineBytes.copyOf(size)
+                timelinePackets = timelinePackets.copyOf(size)
+            }
+            timelineBytes[bucket] += length.toLong()
+            timelinePackets[bucket]++
+            if (bucket >= buckets) buckets = bucket + 1
+            if (isSnapshot(id)) snapshotSizes.getOrPut(id) { mutableListOf() }.add(length)
+        }
+    }
+
+    @JvmStatic
+    fun analyze(fi: Fi, bucketSecs: Int = 1): Stats {
+        val stats = Stats(fi.path(), bucketSecs * 60f)
+        try {
+            ReplayData.Reader(fi).use { reader ->
+                stats.meta = reader.meta
+                stats.formatVersion = reader.formatVersion
+                stats.keyframes = reader.keyframes.size
+                if (analyzers.isEmpty() && reader.chunks.any { it.type == ReplayData.CHUNK_INDEX }) {
+                    //不需要解码时直接读取索引
+                    val index = reader.packetIndex()
+                    for (i in 0 until index.size) stats.add(index.offset(i), index.id(i), index.length(i))
+                    return@use
+                }
+                while (true) {
+                    val info = try {
+                        reader.nextPacket()
+                    } catch (e: EOFException) {
+                        break
+                    }
+                    stats.add(info.offset, info.id, info.length)
+                    val list = analyzers[info.id]
+                    if (list == null) {
+                        reader.skipPacket(info)
+                    } else {
+                        val packet = reader.readPacket(info)
+                        list.forEach { it.accept(stats, info, packet) }
+                    }
+                }
+            }
+        } catch (e: Exception) {
+            stats.error = e.toString()
+        }
+        return stats
+    }
+
+    @JvmStatic
+    fun analyzeAll(files: List<Fi>, bucketSecs: Int, threads: Int): List<Stats> {
+        val pool = ForkJoinPool(threads)
+        try {
+            return pool.submit<List<Stats>> {
+                files.parallelStream().map { analyze(it, bucketSecs) }.collect(Collectors.toList())
+            }.get()
+        } finally {
+            pool.shutdown()
+        }
+    }
+
+    private fun collect(fi: Fi, out: MutableList<Fi>) {
+        if (fi.isDirectory) fi.list().sortedBy { it.name() }.forEach { collect(it, out) }
+        else if (fi.extEquals("mrep")) out.add(fi)
+    }
+
+    @JvmStatic
+    fun main(args: Array<String>) {
+        var json = false
+        var outDir = Fi("replay-analysis")
+        var bucketSecs = 1
+        var threads = Runtime.getRuntime().availableProcessors()
+        val files = mutableListOf<Fi>()
+        var i = 0
+        while (i < args.size) {
+            when (val arg = args[i++]) {
+                "--json" -> json = true
+                "--csv" -> json = false
+                "--out" -> outDir = Fi(args[i++])
+                "--bucket" -> bucketSecs = args[i++].toInt().coerceAtLeast(1)
+                "--threads" -> threads = args[i++].toInt().coerceAtLeast(1)
+                else -> collect(Fi(arg), files)
+            }
+        }
+        if (files.isEmpty()) {
+            println("Usage: ReplayAnalyzer [--json|--csv] [--out dir] [--bucket secs] [--threads n] <file or dir>...")
+            return
+        }
+        val start = System.nanoTime()
+        val result = analyzeAll(files, bucketSecs, threads)
+        outDir.mkdirs()
+        if (json) writeJson(result, bucketSecs, outDir.child("analysis.json").file())
+        else writeCsv(result, bucketSecs, outDir.file())
+        println("Analyzed ${result.size} replays (${result.count { it.error != null }} failed) in ${(System.nanoTime() - start) / 1_000_000}ms, output: ${outDir.absolutePath()}")
+    }
+
+    private fun percentile(sorted: List<Int>, p: Double) = sorted[((sorted.size - 1) * p).toInt()]
+
+    private fun writeCsv(result: List<Stats>, bucketSecs: Int, dir: File) {
+        File(dir, "summary.csv").printWriter().use { w ->
+            w.println("file,format,version,time,server,player,duration_s,packets,bytes,keyframes,error")
+            for (s in result) {
+                val m = s.meta
+                w.println(listOf(s.file, s.formatVersion, m?.version ?: "", m?.time?.time ?: "", m?.serverIp ?: "", m?.recordPlayer ?: "",
+                    s.duration / 60f, s.packets, s.bytes, s.keyframes, s.error ?: "").joinToString(",") { csv(it.toString()) })
+            }
+        }
+        File(dir, "types.csv").printWriter().use { w ->
+            w.println("file,type,count,bytes")
+            for (s in result) for (id in 0 until 256) {
+                if (s.typeCount[id] == 0) continue
+                w.println("${csv(s.file)},${packetName(id.toByte())},${s.typeCount[id]},${s.typeBytes[id]}")
+            }
+        }
+        File(dir, "timeline.csv").printWriter().use { w ->
+            w.println("file,second,bytes_per_s,packets_per_s")
+            for (s in result) for (b in 0 until s.buckets) {
+                w.println("${csv(s.file)},${b * bucketSecs},${s.timelineBytes[b] / bucketSecs},${s.timelinePackets[b].toFloat() / bucketSecs}")
+            }
+        }
+        File(dir, "snapshots.csv").printWriter().use { w ->
+            w.println("file,type,count,min,avg,p95,max")
+            for (s in result) for ((id, sizes) in s.snapshotSizes) {
+                val sorted = sizes.sorted()
+                w.println("${csv(s.file)},${packetName(id)},${sorted.size},${sorted.first()},${sorted.average().toLong()},${percentile(sorted, 0.95)},${sorted.last()}")
+            }
+        }
+    }
+
+    private fun writeJson(result: List<Stats>, bucketSecs: Int, file: File) = file.printWriter().use { w ->
+        w.println("[")
+        result.forEachIndexed { index, s ->
+            val m = s.meta
+            w.print("{\"file\":${str(s.file)},\"format\":${s.formatVersion}")
+            if (m != null) w.print(",\"version\":${m.version},\"time\":${m.time.time},\"server\":${str(m.serverIp)},\"player\":${str(m.recordPlayer)}")
+            w.print(",\"duration_s\":${s.duration / 60f},\"packets\":${s.packets},\"bytes\":${s.bytes},\"keyframes\":${s.keyframes}")
+            if (s.error != null) w.print(",\"error\":${str(s.error!!)}")
+            w.print(",\"types\":{")
+            w.print((0 until 256).filter { s.typeCount[it] > 0 }.joinToString(",") {
+                "${str(packetName(it.toByte()))}:{\"count\":${s.typeCount[it]},\"bytes\":${s.typeBytes[it]}}"
+            })
+            w.print("},\"timeline\":{\"bucket_s\":$bucketSecs,\"bytes\":[")
+            w.print((0 until s.buckets).joinToString(",") { s.timelineBytes[it].toString() })
+            w.print("],\"packets\":[")
+            w.print((0 until s.buckets).joinToString(",") { s.timelinePackets[it].toString() })
+            w.print("]},\"snapshots\":{")
+            w.print(s.snapshotSizes.entries.joinToString(",") { (id, sizes) ->
+                val sorted = sizes.sorted()
+                "${str(packetName(id))}:{\"count\":${sorted.size},\"min\":${sorted.first()},\"avg\":${sorted.average().toLong()},\"p95\":${percentile(sorted, 0.95)},\"max\":${sorted.last()}}"
+            })
+            w.print("}}")
+            w.println(if (index == result.size - 1) "" else ",")
+        }
+        w.println("]")
+    }
+
+    private fun csv(value: String) = if (value.any { it == ',' || it == '"' || it == '\n' }) "\"${value.replace("\"", "\"\"")}\"" else value
+
+    /** JSON字符串字面量，带引号与转义 */
+    internal fun str(value: String) = buildString {
+        append('"')
+        for (c in value) when {
+            c == '"' -> append("\\\"")
+            c == '\\' -> append("\\\\")
+            c < ' ' -> append("\\u%04x".format(c.code))
+            else -> append(c)
+        }
+        append('"')
+    }
+}
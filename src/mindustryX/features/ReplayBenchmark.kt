@@ -0,0 +1,163 @@
+package mindustryX.features
+
+import arc.ApplicationListener
+import arc.Core
+import arc.files.Fi
+import arc.func.Floatp
+import arc.util.Log
+import arc.util.Reflect
+import arc.util.Strings
+import arc.util.Time
+import mindustry.Vars
+import mindustry.core.PerfCounter
+import mindustry.gen.Groups
+import java.util.*
+
+/**
+ * 回放基准测试：以固定步长尽快回放录制文件，统计各阶段耗时。
+ * 每帧推进[step] tick的回放时间，同时固定Time.delta并等待该时间内的数据包全部读取完成，
+ * 同一文件每次运行的逻辑帧与数据包完全一致，可以用来对比客户端优化前后的性能。
+ *
+ * 由[ReplayController.startBenchmark]启动，结果输出到日志与`dataDirectory/replay-bench`。
+ */
+class ReplayBenchmark(val file: Fi, val render: Boolean, val step: Float) {
+    class Phase(val name: String) {
+        private var values = LongArray(1024)
+        var size = 0
+            private set
+        var total = 0L
+            private set
+
+        fun add(ns: Long) {
+            if (size == values.size) values = values.copyOf(size * 2)
+            values[size++] = ns
+            total += ns
+        }
+
+        fun percentile(p: Double): Long {
+            if (size == 0) return 0
+            val sorted = values.copyOf(size).also { it.sort() }
+            return sorted[((size - 1) * p).toInt()]
+        }
+
+        fun mean() = if (size == 0) 0.0 else total.toDouble() / size
+        fun max() = (0 until size).maxOfOrNull { values[it] } ?: 0
+    }
+
+    //每帧的耗时
+    val handle = Phase("handle")
+    val entityUpdate = Phase("entityUpdate")
+    val logic = Phase("logic")
+    val draw = Phase("render")
+    val frame = Phase("frame")
+    private val phases = listOfNotNull(handle, entityUpdate, logic, if (render) draw else null, frame)
+
+    /** 读取线程解码数据包的总耗时，只由读取线程写入 */
+    @Volatile
+    var decodeNanos = 0L
+        private set
+
+    /** 主线程等待读取线程的总耗时 */
+    var stallNanos = 0L
+    var packets = 0
+        private set
+
+    private var frameHandle = -1L
+    private var frameStart = 0L
+    private var startNanos = 0L
+    private var oldDelta: Floatp? = null
+
+    /** 正常退出游戏时恢复帧率设置 */
+    private val exitListener = object : ApplicationListener {
+        override fun dispose() = restoreFpsCap()
+    }
+
+    fun install() {
+        oldDelta = Reflect.get(Time::class.java, "deltaimpl")
+        Time.setDeltaProvider { step }
+        //尽快运行，不限制帧率。帧率上限只能通过设置修改，先备份原值，崩溃后由下次启动时的restoreFpsCap恢复
+        if (!Core.settings.has(FPS_CAP_BACKUP)) Core.settings.put(FPS_CAP_BACKUP, Core.settings.getInt("fpscap", 120))
+        Core.settings.put("fpscap", 245)
+        Core.app.addListener(exitListener)
+        Core.graphics.setVSync(false)
+        startNanos = Time.nanos()
+    }
+
+    fun uninstall() {
+        try {
+            oldDelta?.let { Time.setDeltaProvider(it) }
+        } finally {
+            Core.app.removeListener(exitListener)
+            restoreFpsCap()
+            Core.graphics.setVSync(Core.settings.getBool("vsync"))
+        }
+    }
+
+    /** 在每帧处理数据包前调用，记录上一帧的耗时(此时上一帧的逻辑与绘制已完成) */
+    fun beginFrame() {
+        val now = Time.nanos()
+        if (frameHandle >= 0) {
+            val entity = PerfCounter.entityUpdate.rawValueNs()
+            handle.add(frameHandle)
+            entityUpdate.add(entity)
+            logic.add((DebugUtil.logicTime - frameHandle - entity).coerceAtLeast(0))
+            if (render) draw.add(PerfCounter.render.rawValueNs())
+            frame.add(now - frameStart)
+        }
+        frameStart = now
+        frameHandle = 0
+    }
+
+    fun addDecode(ns: Long) {
+        decodeNanos += ns
+    }
+
+    fun addPacket(handleNs: Long) {
+        frameHandle += handleNs
+        packets++
+    }
+
+    fun report(): String = buildString {
+        val wall = Time.timeSinceNanos(startNanos)
+        appendLine("${file.name()} step=$step render=$render")
+        appendLine("frames=${frame.size} packets=$packets wall=${ms(wall)}ms stall=${ms(stallNanos)}ms")
+        appendLine("decode: total=${ms(decodeNanos)}ms ${if (packets == 0) 0 else decodeNanos / packets}ns/packet (reader thread)")
+        appendLine("units=${Groups.unit.size()} builds=${Groups.build.size()} bullets=${Groups.bullet.size()}")
+        for (phase in phases) {
+            appendLine(Strings.format("@: total=@ms mean=@ms p50=@ms p95=@ms max=@ms", phase.name, ms(phase.total),
+                Strings.fixed((phase.mean() / Time.nanosPerMilli).toFloat(), 3), ms(phase.percentile(0.5)), ms(phase.percentile(0.95)), ms(phase.max())))
+        }
+    }
+
+    /** 写入JSON结果，返回文件 */
+    fun writeResult(): Fi {
+        val out = Vars.dataDirectory.child("replay-bench").child("${file.nameWithoutExtension()}-${Date().time}.json")
+        out.writeString(buildString {
+            append("{\"file\":${ReplayAnalyzer.str(file.name())},\"step\":$step,\"render\":$render")
+            append(",\"frames\":${frame.size},\"packets\":$packets,\"wallNs\":${Time.timeSinceNanos(startNanos)}")
+            append(",\"stallNs\":$stallNanos,\"decodeNs\":$decodeNanos")
+            append(",\"units\":${Groups.unit.size()},\"builds\":${Groups.build.size()}")
+            for (phase in phases) {
+                append(",\"${phase.name}\":{\"totalNs\":${phase.total},\"meanNs\":${phase.mean().toLong()}")
+                append(",\"p50Ns\":${phase.percentile(0.5)},\"p95Ns\":${phase.percentile(0.95)},\"maxNs\":${phase.max()}}")
+            }
+            append("}")
+        })
+        Log.info("Replay benchmark result: @", out.absolutePath())
+        return out
+    }
+
+    private fun ms(ns: Long) = Strings.fixed(ns / Time.nanosPerMilli.toFloat(), 2)
+
+    companion object {
+        private const val FPS_CAP_BACKUP = "replayBenchmark.fpscap"
+
+        /** 恢复测试前的帧率上限，启动时调用一次以处理测试中崩溃的情况 */
+        @JvmStatic
+        fun restoreFpsCap() {
+            if (!Core.settings.has(FPS_CAP_BACKUP)) return
+            Core.settings.put("fpscap", Core.settings.getInt(FPS_CAP_BACKUP))
+            Core.settings.remove(FPS_CAP_BACKUP)
+        }
+    }
+}
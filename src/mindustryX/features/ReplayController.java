@@ -2,18 +2,26 @@ package mindustryX.features;
 
 import arc.*;
 import arc.files.*;
+import arc.graphics.*;
+import arc.graphics.g2d.*;
+import arc.scene.*;
+import arc.scene.ui.*;
 import arc.scene.ui.layout.*;
 import arc.util.*;
+import kotlin.collections.*;
 import mindustry.*;
 import mindustry.core.*;
 import mindustry.game.*;
 import mindustry.gen.*;
 import mindustry.net.*;
 import mindustry.net.Packets.*;
+import mindustry.ui.*;
 import mindustry.ui.dialogs.*;
 import mindustryX.features.SettingsV2.*;
 
+import java.io.*;
 import java.util.*;
+import java.util.concurrent.*;
 
 import static mindustry.Vars.*;
 
@@ -24,17 +32,44 @@ import static mindustry.Vars.*;
  */
 public class ReplayController{
     private static final CheckPref enable = new CheckPref("replayRecord");
+    private static final ChoosePref compression = new ChoosePref("replayCompression", CollectionsKt.listOf("Deflate", "LZ4"), ReplayData.CODEC_LZ4);
+    private static final CheckPref deltaSnapshots = new CheckPref("replayDeltaSnapshots", true);
+    private static final SliderPref keyframeInterval = new SliderPref("replayKeyframeInterval", 2, 0, 10, 1, i -> i == 0 ? "关闭" : i + "分钟");
+    private static final SliderPref instantReplay = new SliderPref("instantReplay", 0, 0, 10, 1, i -> i == 0 ? "关闭" : i + "分钟");
+    private static final SliderPref instantReplayBuffer = new SliderPref("instantReplayBuffer", 64, 16, 512, 16, i -> i + "MB");
 
-    public static boolean replaying;
+    public static volatile boolean replaying;
+    /** 最快速度回放或跳转快进中，此时跳过大部分绘制 */
+    public static boolean catchingUp;
+    private static boolean maxSpeed;
+    /** 最快速度时每帧处理数据包的时间预算 */
+    private static final long fastFrameBudget = Time.nanosPerMilli * 12;
+
+    //由回放线程读取，主线程批量处理
+    private static final ArrayBlockingQueue<Entry> queue = new ArrayBlockingQueue<>(4096);
+    /** 请求跳转的目标时间，单位tick，负数表示无请求 */
+    private static volatile float seekTarget = -1;
+    /** 每次跳转递增，用于丢弃跳转前读取的数据包 */
+    private static volatile int serial;
+    private static volatile boolean finished;
+    private static @Nullable Entry pending;
+    private static float playTime, fastForwardTarget = -1;
+    private static float lastKeyframe;
 
     private static ReplayData.Writer writer;
+    private static Fi writerFile;
+    /** 断开连接后保留，直到下次连接 */
+    private static @Nullable InstantReplay instant;
     private static ReplayData.Reader reader;
+    private static @Nullable ReplayBenchmark benchmark;
 
     public static void init(){
+        ReplayBenchmark.restoreFpsCap();
         Events.run(EventType.Trigger.update, () -> {
             if(replaying && state.isMenu() && !netClient.isConnecting()){
                 stopPlay();
             }
+            updatePlay();
         });
         {
             Table buttons = Vars.ui.join.buttons;
@@ -42,7 +77,26 @@ public class ReplayController{
                 FileChooser.setLastDirectory(saveDirectory);
                 platform.showFileChooser(true, "打开回放文件", "mrep", f -> Core.app.post(() -> ReplayController.startPlay(f)));
             });
+            buttons.button("回放基准测试", Icon.settings, () -> {
+                FileChooser.setLastDirectory(saveDirectory);
+                platform.showFileChooser(true, "打开回放文件", "mrep", f -> Core.app.post(() ->
+                ui.showCustomConfirm("回放基准测试", "以固定步长尽快回放，统计各阶段耗时。\n是否绘制画面?", "绘制", "不绘制",
+                () -> startBenchmark(f, true), () -> startBenchmark(f, false))));
+            });
         }
+        ui.hudGroup.fill(t -> {
+            t.top().visible(() -> replaying && ui.hudfrag.shown && !state.isMenu());
+            t.table(Styles.black3, bar -> {
+                bar.defaults().size(40f, 30f);
+                bar.button("/2", Styles.cleart, () -> TimeControl.setGameSpeed(Math.max(TimeControl.gameSpeed / 2f, 0.25f)));
+                bar.label(() -> maxSpeed ? "MAX" : "x" + Strings.autoFixed(TimeControl.gameSpeed, 2)).width(60f).labelAlign(Align.center);
+                bar.button("×2", Styles.cleart, () -> TimeControl.setGameSpeed(Math.min(TimeControl.gameSpeed * 2f, 64f)));
+                bar.button("[red]S", Styles.cleart, () -> TimeControl.setGameSpeed(0f)).tooltip("暂停回放");
+                bar.button("[green]N", Styles.cleart, () -> TimeControl.setGameSpeed(1f)).tooltip("恢复原速");
+                bar.button(">>", Styles.clearTogglet, () -> setMaxSpeed(!maxSpeed)).checked(b -> maxSpeed).tooltip("最快速度回放，跳过大部分绘制");
+                bar.label(() -> formatTime(playTime / 60f)).width(90f).labelAlign(Align.center);
+            }).margin(4f);
+        });
         {
             var pausedDialog = Vars.ui.paused;
             pausedDialog.shown(() -> {
@@ -50,37 +104,104 @@ public class ReplayController{
                 pausedDialog.cont.row()
                 .button("查看录制信息", Icon.fileImage, ReplayController::showInfo).name("ReplayInfo")
                 .size(0, 60).colspan(pausedDialog.cont.getColumns()).fill();
+                if(reader != null && !reader.getKeyframes().isEmpty()){
+                    pausedDialog.cont.row()
+                    .button("跳转进度", Icon.rotate, ReplayController::showSeek).name("ReplaySeek")
+                    .size(0, 60).colspan(pausedDialog.cont.getColumns()).fill();
+                }
             });
         }
+        //上次录制中断(崩溃或强制退出)的文件缺少文件尾，在后台修复
+        Threads.daemon("Replay Repair", ReplayController::repairAll);
+    }
+
+    private static void repairAll(){
+        for(Fi file : saveDirectory.list(".mrep")){
+            repair(file);
+        }
+    }
+
+    private static void repair(Fi file){
+        try{
+            int chunks = ReplayData.repair(file);
+            if(chunks >= 0) Log.info("修复回放@，恢复了@个chunk", file.name(), chunks);
+        }catch(Exception e){
+            Log.err("修复回放" + file.name() + "失败", e);
+        }
     }
 
     public static void onConnect(String ip){
-        if(!enable.get() || LogicExt.contentsCompatibleMode) return;
-        if(replaying) return;
+        if(!replaying) NetTelemetry.reset();
+        if(LogicExt.contentsCompatibleMode || replaying) return;
+        boolean anonymous = Core.settings.getBool("anonymous", false);
+        ReplayData header = new ReplayData(Version.build, new Date(), anonymous ? "anonymous" : ip, anonymous ? "anonymous" : Vars.player.name.trim());
+        instant = null;
+        if(instantReplay.get() > 0){
+            instant = new InstantReplay(instantReplayBuffer.get() * 1024 * 1024, instantReplay.get() * 60 * 60f, header);
+        }else{
+            InstantReplay.release();
+        }
+        if(!enable.get()) return;
         var file = saveDirectory.child(new Date().getTime() + ".mrep");
         ReplayData.Writer writer;
         try{
-            writer = new ReplayData.Writer(file.write(false, 8192));
+            writer = new ReplayData.Writer(file.write(false, 8192), compression.get(), deltaSnapshots.get());
         }catch(Exception e){
             Log.err("创建回放出错!", e);
             return;
         }
-        boolean anonymous = Core.settings.getBool("anonymous", false);
-        ReplayData header = new ReplayData(Version.build, new Date(), anonymous ? "anonymous" : ip, anonymous ? "anonymous" : Vars.player.name.trim());
         writer.writeHeader(header);
+        lastKeyframe = 0;
         Log.info("录制中: @", file.absolutePath());
         ReplayController.writer = writer;
+        writerFile = file;
     }
 
     public static void onClientPacket(Packet p){
+        if(!replaying){
+            NetTelemetry.onReceive(p);
+            OutboundSync.onReceive(p);
+        }
+        //回放时不记录，保留断开前的即时回放供导出
+        if(instant != null && !replaying && !(p instanceof Disconnect)){
+            try{
+                instant.add(p);
+            }catch(Exception e){
+                instant = null;
+                Log.err("即时回放出错，已关闭", e);
+            }
+        }
         if(writer == null) return;
         if(p instanceof Disconnect){
             writer.close();
+            if(writer.getDroppedPackets() > 0){
+                Log.warn("录制缓冲区溢出，丢弃了@个快照(@KB)", writer.getDroppedPackets(), writer.getDroppedBytes() / 1024);
+            }
+            if(writer.getTimedOut()){
+                //写入线程结束后补写文件尾；若一直未结束，下次启动时由repairAll修复
+                var closing = writer;
+                var file = writerFile;
+                Log.warn("回放@未完整写入，写入结束后修复", file.name());
+                Threads.daemon("Replay Repair", () -> {
+                    try{
+                        closing.awaitClose();
+                    }catch(InterruptedException e){
+                        return;
+                    }
+                    repair(file);
+                });
+            }
             writer = null;
             Log.info("录制结束");
             return;
         }
         try{
+            //关键帧需要在处理数据包前写入，与数据包顺序一致
+            int interval = keyframeInterval.get();
+            if(interval > 0 && net.client() && state.isGame() && writer.getOffset() - lastKeyframe >= interval * 60 * 60f){
+                lastKeyframe = writer.getOffset();
+                writeKeyframe(writer);
+            }
             writer.writePacket(p);
         }catch(Exception e){
             net.disconnect();
@@ -89,9 +210,57 @@ public class ReplayController{
         }
     }
 
+    /** 与服务器发送的WorldStream相同，见NetServer.sendWorldData；压缩在写入线程进行 */
+    private static void writeKeyframe(ReplayData.Writer writer) throws IOException{
+        var bytes = new ByteArrayOutputStream();
+        NetworkIO.writeWorld(player, bytes);
+        writer.writeKeyframe(bytes.toByteArray());
+    }
+
+    /** 导出即时回放，由快捷键调用 */
+    public static void exportInstantReplay(){
+        if(instant == null){
+            ui.announce("即时回放未开启");
+            return;
+        }
+        var file = saveDirectory.child("instant-" + new Date().getTime() + ".mrep");
+        boolean started = instant.export(file, compression.get(), deltaSnapshots.get(), e -> {
+            Core.app.post(() -> ui.announce(e == null ? "已保存即时回放: " + file.name() : "导出即时回放失败: " + e));
+        });
+        if(!started) ui.announce("即时回放暂无可导出的数据");
+    }
+
+    /** 用于DebugUtil */
+    public static String writerStats(){
+        var writer = ReplayController.writer;
+        if(writer == null) return "-";
+        return Strings.format("@KB, dropped @", writer.getPendingBytes() / 1024, writer.getDroppedPackets());
+    }
+
     //replay
 
+    private static void resetClient(){
+        logic.reset();
+        net.reset();
+        netClient.beginConnecting();
+        Reflect.set(net, "active", true);
+    }
+
     public static void startPlay(Fi input){
+        startPlay(input, null);
+    }
+
+    /**
+     * 回放基准测试，见{@link ReplayBenchmark}
+     * @param render 是否绘制画面，否则与最快速度回放一样跳过大部分绘制
+     */
+    public static void startBenchmark(Fi input, boolean render){
+        var bench = new ReplayBenchmark(input, render, 1f);
+        startPlay(input, bench);
+        bench.install();
+    }
+
+    private static void startPlay(Fi input, @Nullable ReplayBenchmark bench){
         try{
             reader = new ReplayData.Reader(input);
             Log.infoTag("Replay", reader.getMeta().toString());
@@ -100,38 +269,149 @@ public class ReplayController{
         }
 
         replaying = true;
+        benchmark = bench;
+        seekTarget = -1;
+        playTime = 0;
+        fastForwardTarget = -1;
+        pending = null;
+        finished = false;
+        queue.clear();
         ui.loadfrag.show("@connecting");
         ui.loadfrag.setButton(ReplayController::stopPlay);
 
-        logic.reset();
-        net.reset();
-        netClient.beginConnecting();
-        Reflect.set(net, "active", true);
+        resetClient();
 
+        var reader = ReplayController.reader;
         Threads.daemon("Replay Controller", () -> {
-            float startTime = Time.time;
             try{
                 while(replaying){
+                    float target = seekTarget;
+                    if(target >= 0){
+                        seekTarget = -1;
+                        serial++;
+                        queue.clear();
+                        queue.put(new Entry(serial, target, reader.seek(target), true));
+                    }
+                    long start = Time.nanos();
                     var info = reader.nextPacket();
-                    Packet packet = reader.readPacket(info);
-                    while(Time.time - startTime < info.getOffset())
-                        Thread.sleep(1);
-                    Core.app.post(() -> net.handleClientReceived(packet));
+                    var entry = new Entry(serial, info.getOffset(), reader.readPacket(info), false);
+                    if(bench != null) bench.addDecode(Time.timeSinceNanos(start));
+                    //队列满时阻塞，跳转或停止时由主线程清空队列唤醒
+                    while(replaying && seekTarget < 0 && !queue.offer(entry, 100, TimeUnit.MILLISECONDS)) ;
                 }
+            }catch(EOFException e){
+                finished = true;
             }catch(Exception e){
-                //May EOF
-                replaying = false;
-                Log.err(e);
-            }finally{
-                stopPlay();
+                if(replaying) Log.err(e);
+                Core.app.post(ReplayController::stopPlay);
             }
         });
     }
 
+    /** 在主线程批量处理本帧到期的数据包，回放时间随Time.delta推进，因此受TimeControl游戏速度控制 */
+    private static void updatePlay(){
+        if(!replaying) return;
+        if(benchmark != null){
+            updateBenchmark(benchmark);
+            return;
+        }
+        boolean fast = maxSpeed || fastForwardTarget >= 0;
+        if(!fast) playTime += Time.delta;
+        long start = Time.nanos();
+        while(true){
+            Entry entry = pending != null ? pending : queue.poll();
+            pending = null;
+            if(entry == null) break;
+            if(entry.serial != serial) continue;//跳转前读取的数据包
+            if(entry.reset){
+                //从关键帧载入世界，之后快进到目标时间
+                resetClient();
+                ui.loadfrag.show("@connecting");
+                if(entry.packet != null) net.handleClientReceived(entry.packet);
+                fastForwardTarget = entry.offset;
+                fast = true;
+                continue;
+            }
+            if(!fast && entry.offset > playTime || fast && Time.timeSinceNanos(start) > fastFrameBudget){
+                pending = entry;
+                break;
+            }
+            net.handleClientReceived(entry.packet);
+            if(fast) playTime = entry.offset;
+            if(fastForwardTarget >= 0 && entry.offset >= fastForwardTarget){
+                fastForwardTarget = -1;
+                fast = maxSpeed;
+            }
+        }
+        catchingUp = fast;
+        if(finished && pending == null && queue.isEmpty()) stopPlay();
+    }
+
+    /** 每帧固定推进回放时间，阻塞等待到期的数据包，保证每次运行处理的数据包完全一致 */
+    private static void updateBenchmark(ReplayBenchmark bench){
+        bench.beginFrame();
+        playTime += bench.getStep();
+        catchingUp = !bench.getRender();
+        while(true){
+            Entry entry = pending;
+            pending = null;
+            if(entry == null){
+                if(finished && queue.isEmpty()){
+                    finishBenchmark(bench);
+                    return;
+                }
+                long wait = Time.nanos();
+                try{
+                    entry = queue.poll(100, TimeUnit.MILLISECONDS);
+                }catch(InterruptedException e){
+                    stopPlay();
+                    return;
+                }
+                bench.setStallNanos(bench.getStallNanos() + Time.timeSinceNanos(wait));
+                if(entry == null) continue;
+            }
+            if(entry.offset > playTime){
+                pending = entry;
+                break;
+            }
+            long start = Time.nanos();
+            net.handleClientReceived(entry.packet);
+            bench.addPacket(Time.timeSinceNanos(start));
+        }
+    }
+
+    private static void finishBenchmark(ReplayBenchmark bench){
+        String report = bench.report();
+        Log.infoTag("Replay", "benchmark\n" + report);
+        Fi result = bench.writeResult();
+        stopPlay();
+        Core.app.post(() -> ui.showText("回放基准测试", report + "\n[gray]" + result.absolutePath()));
+    }
+
+    /** 跳转到回放的指定时间，单位tick */
+    public static void seek(float time){
+        if(!replaying) return;
+        seekTarget = Math.max(time, 0);
+        queue.clear();
+    }
+
+    public static void setMaxSpeed(boolean value){
+        maxSpeed = value;
+        if(!value) catchingUp = fastForwardTarget >= 0;
+    }
+
     public static void stopPlay(){
         if(!replaying) return;
         Log.infoTag("Replay", "stop");
         replaying = false;
+        catchingUp = false;
+        if(benchmark != null){
+            benchmark.uninstall();
+            benchmark = null;
+        }
+        maxSpeed = false;
+        pending = null;
+        queue.clear();
         reader.close();
         reader = null;
         net.disconnect();
@@ -140,6 +420,34 @@ public class ReplayController{
     }
 
 
+    private static void showSeek(){
+        var keyframes = reader.getKeyframes();
+        float length = Math.max(reader.getDuration(), keyframes.get(keyframes.size() - 1).getOffset());
+        BaseDialog dialog = new BaseDialog("跳转进度");
+        Slider slider = new Slider(0, length / 60f, 1, false);
+        dialog.cont.label(() -> formatTime(slider.getValue())).row();
+        dialog.cont.add(slider).width(500f).row();
+        dialog.cont.table(t -> {
+            t.defaults().pad(4);
+            for(var keyframe : keyframes){
+                t.button(formatTime(keyframe.getOffset() / 60f), Styles.flatt, () -> slider.setValue(keyframe.getOffset() / 60f)).size(100f, 40f);
+                if(t.getChildren().size % 5 == 0) t.row();
+            }
+        }).row();
+        dialog.addCloseButton();
+        dialog.buttons.button("@ok", Icon.ok, () -> {
+            seek(slider.getValue() * 60f);
+            dialog.hide();
+            ui.paused.hide();
+        });
+        dialog.show();
+    }
+
+    private static String formatTime(float secs){
+        int s = (int)secs;
+        return (s / 3600) + ":" + (s / 60 % 60) + ":" + (s % 60);
+    }
+
     public static void showInfo(){
         BaseDialog dialog = new BaseDialog("回放统计");
         if(reader == null){
@@ -154,23 +462,84 @@ public class ReplayController{
 
         if(reader.getSource() != null){
             var tmpReader = new ReplayData.Reader(reader.getSource());
-            var packets = tmpReader.allPacket();
+            var index = tmpReader.packetIndex();
+            int keyframes = tmpReader.getKeyframes().size();
             tmpReader.close();
 
-            dialog.cont.add("数据包总数：" + packets.size()).row();
-            int secs = (int)(packets.get(packets.size() - 1).getOffset() / 60);
-            dialog.cont.add("回放长度:" + (secs / 3600) + ":" + (secs / 60 % 60) + ":" + (secs % 60)).row();
-            dialog.cont.pane(t -> {
-                t.defaults().pad(2);
-                for(var packet : packets){
-                    t.add(Strings.format("+@s", Strings.fixed(packet.getOffset() / 60f, 2)));
-                    t.add(Net.newPacket(packet.getId()).getClass().getSimpleName()).fillX();
-                    t.add("L=" + packet.getLength());
-                    t.row();
+            dialog.cont.add("数据包总数：" + index.getSize()).row();
+            dialog.cont.add("回放长度:" + formatTime(index.getDuration() / 60)).row();
+            dialog.cont.add("关键帧数:" + keyframes).row();
+            dialog.cont.table(t -> {
+                t.defaults().pad(2).left();
+                var types = new ArrayList<>(index.getTypes());
+                types.sort(Comparator.comparingLong(ReplayData.TypeTotal::getBytes).reversed());
+                for(var type : types){
+                    t.add(packetName(type.getId()));
+                    t.add("x" + type.getCount());
+                    t.add(type.getBytes() / 1024 + "KB").row();
                 }
-            }).growX().row();
+            }).row();
+            dialog.cont.pane(new PacketList(index)).growX().height(400f).row();
         }
         dialog.addCloseButton();
         dialog.show();
     }
+
+    private static final String[] packetNames = new String[256];
+
+    private static String packetName(byte id){
+        String name = packetNames[id & 0xFF];
+        if(name == null) name = packetNames[id & 0xFF] = Net.newPacket(id).getClass().getSimpleName();
+        return name;
+    }
+
+    private static class Entry{
+        final int serial;
+        final float offset;
+        final @Nullable Packet packet;
+        /** 跳转：packet为关键帧(可能为null)，offset为目标时间 */
+        final boolean reset;
+
+        Entry(int serial, float offset, @Nullable Packet packet, boolean reset){
+            this.serial = serial;
+            this.offset = offset;
+            this.packet = packet;
+            this.reset = reset;
+        }
+    }
+
+    /** 只绘制可见行，避免为每个数据包创建UI元素 */
+    private static class PacketList extends Element{
+        private static final float rowHeight = 28f;
+        private final ReplayData.PacketIndex index;
+
+        PacketList(ReplayData.PacketIndex index){
+            this.index = index;
+        }
+
+        @Override
+        public float getPrefWidth(){
+            return 500f;
+        }
+
+        @Override
+        public float getPrefHeight(){
+            return index.getSize() * rowHeight;
+        }
+
+        @Override
+        public void draw(){
+            if(!(parent instanceof ScrollPane pane)) return;
+            int first = Math.max((int)(pane.getScrollY() / rowHeight), 0);
+            int last = Math.min((int)((pane.getScrollY() + pane.getHeight()) / rowHeight) + 1, index.getSize());
+            Font font = Fonts.def;
+            font.setColor(Color.white);
+            for(int i = first; i < last; i++){
+                float top = y + height - i * rowHeight - (rowHeight - font.getLineHeight()) / 2f;
+                font.draw(Strings.format("+@s", Strings.fixed(index.offset(i) / 60f, 2)), x + 8f, top);
+                font.draw(packetName(index.id(i)), x + 130f, top);
+                font.draw("L=" + index.length(i), x + width - 120f, top);
+            }
+        }
+    }
 }
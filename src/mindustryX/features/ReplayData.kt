@@ -1,18 +1,30 @@
 package mindustryX.features
 
 import arc.files.Fi
+import arc.util.Log
+import arc.util.Threads
 import arc.util.Time
 import arc.util.io.ByteBufferOutput
 import arc.util.io.Reads
 import arc.util.io.Writes
 import mindustry.Vars
+import net.jpountz.lz4.LZ4Factory
 import mindustry.net.Net
 import mindustry.net.Packet
+import mindustry.net.Packets.WorldStream
 import mindustry.net.Streamable
 import java.io.*
 import java.nio.ByteBuffer
+import java.nio.file.Files
+import java.nio.file.StandardCopyOption
 import java.util.*
+import java.util.concurrent.ConcurrentLinkedQueue
+import java.util.concurrent.locks.LockSupport
+import java.util.stream.Collectors
+import java.util.zip.CRC32
+import java.util.zip.Deflater
 import java.util.zip.DeflaterOutputStream
+import java.util.zip.Inflater
 import java.util.zip.InflaterInputStream
 
 data class ReplayData(
@@ -25,47 +37,551 @@ data class ReplayData(
         override fun server(): Boolean = true
     }
 
-    class Writer(outputStream: OutputStream) : Closeable {
-        val writes = DataOutputStream(DeflaterOutputStream(outputStream))
+    companion object {
+        const val MAGIC = 0x4D524550 //"MREP"
+        const val FORMAT_VERSION = 3
+        const val CHUNK_SIZE = 64 * 1024
+        const val CHUNK_PACKETS = 0
+        const val CHUNK_KEYFRAME = 1
+        const val CHUNK_INDEX = 2
+        const val CHUNK_END = -1
+        /** chunk类型的标记位：部分类型的数据包与同chunk中上一个同类型数据包做XOR差分 */
+        const val CHUNK_FLAG_DELTA = 0x8
+        const val CODEC_DEFLATE = 0
+        const val CODEC_LZ4 = 1
+        private const val CHUNK_TYPE_MASK = 0x7
+        private const val CHUNK_HEADER_SIZE = 1 + 4 + 4 + 4 + 4
+        /** v2格式的chunk头没有校验和 */
+        private const val CHUNK_HEADER_SIZE_V2 = 1 + 4 + 4 + 4
+        /** 超过此长度的chunk头视为损坏 */
+        private const val MAX_CHUNK_LENGTH = 1 shl 28
+        /** chunk未满时，最多间隔这么久也会写盘，单位纳秒 */
+        private const val FLUSH_INTERVAL = 5_000_000_000L
+        private const val FOOTER_SIZE = 8 + 4
+        private const val RING_SIZE = 4 * 1024 * 1024
+        private const val PARALLEL_BATCH = 256
+
+        //环形缓冲区中的记录: kind(byte), id(byte), time(float), length(int), data
+        private const val RECORD_HEADER_SIZE = 1 + 1 + 4 + 4
+        private const val KIND_PACKET = 0
+        private const val KIND_KEYFRAME = 1
+        private const val KIND_EXTERNAL = 0x10
+
+        private val lz4 by lazy { LZ4Factory.fastestInstance() }
+
+        /** 解压一个数据chunk，可在任意线程调用 */
+        private fun decode(codec: Int, data: ByteArray, rawLength: Int): ByteArray {
+            val bs = ByteArray(rawLength)
+            when (codec) {
+                CODEC_DEFLATE -> {
+                    val inflater = Inflater()
+                    try {
+                        inflater.setInput(data)
+                        inflater.inflate(bs)
+                    } finally {
+                        inflater.end()
+                    }
+                }
+
+                CODEC_LZ4 -> lz4.fastDecompressor().decompress(data, 0, bs, 0, rawLength)
+                else -> throw IOException("Unknown chunk codec: $codec")
+            }
+            return bs
+        }
+
+        /** MAGIC, FORMAT_VERSION, version, time, 两个UTF的长度前缀 */
+        private const val CHUNK_DATA_START = 4L + 4 + 4 + 8 + 2 + 2
+        private val EMPTY = DataInputStream(ByteArrayInputStream(ByteArray(0)))
+
+        private fun openRaw(input: InputStream) = DataInputStream(if (input.markSupported()) input else BufferedInputStream(input))
+
+        private fun InputStream.skipFully(n: Long) {
+            var remain = n
+            while (remain > 0) {
+                val skipped = skip(remain)
+                if (skipped <= 0) {
+                    if (read() == -1) throw EOFException()
+                    remain--
+                } else remain -= skipped
+            }
+        }
+
+        /** 需要差分编码的数据包类型：各种Snapshot */
+        private fun snapshotPacketIds(): ByteArray = (0 until 256).filter { id ->
+            runCatching { Net.newPacket<Packet>(id.toByte()).javaClass.simpleName.endsWith("Snapshot") }.getOrDefault(false)
+        }.map { it.toByte() }.toByteArray()
+
+        /** dest = data ^ prev，超出prev长度的部分保持原样 */
+        private fun xorDelta(data: ByteArray, prev: ByteArray, prevLength: Int, dest: ByteArray, length: Int) {
+            val common = minOf(length, prevLength)
+            for (i in 0 until common) dest[i] = (data[i].toInt() xor prev[i].toInt()).toByte()
+            System.arraycopy(data, common, dest, common, length - common)
+        }
+
+        /** 原地还原：从offset开始的数据与prev中prevOffset开始的数据XOR */
+        private fun xorDelta(data: ByteArray, offset: Int, prev: ByteArray, prevOffset: Int, prevLength: Int, length: Int) {
+            val common = minOf(length, prevLength)
+            for (i in 0 until common) data[offset + i] = (data[offset + i].toInt() xor prev[prevOffset + i].toInt()).toByte()
+        }
+
+        /** 以服务端的身份序列化数据包，部分数据包的write依赖net.server() */
+        @JvmStatic
+        fun writePacketData(packet: Packet, writes: Writes) {
+            val oldNet = Vars.net
+            try {
+                Vars.net = FakeServer
+                packet.write(writes)
+            } finally {
+                Vars.net = oldNet
+            }
+        }
+
+        /** 读取chunk头，包括type；[CHUNK_END]时只读取type */
+        private fun readChunkHeader(input: DataInput, checksum: Boolean): ChunkHeader {
+            val type = input.readByte().toInt()
+            if (type == CHUNK_END) return ChunkHeader(type, 0f, 0, 0, -1)
+            return ChunkHeader(type, input.readFloat(), input.readInt(), input.readInt(), if (checksum) input.readInt().toLong() and 0xFFFFFFFFL else -1)
+        }
+
+        /** 读取[position]处的chunk，校验失败时返回null */
+        private fun readChunkAt(file: RandomAccessFile, position: Long, checksum: Boolean): Pair<ChunkHeader, ByteArray>? {
+            file.seek(position)
+            val header = readChunkHeader(file, checksum)
+            if (!header.plausible || file.filePointer + header.length > file.length()) return null
+            val data = ByteArray(header.length)
+            file.readFully(data)
+            return if (header.verify(data)) header to data else null
+        }
+
+        /**
+         * 文件尾缺失时，从[start]开始逐个扫描chunk，跳过校验失败的chunk。
+         * 有校验和时，遇到损坏的chunk头会逐字节向后查找下一个能通过校验的chunk。
+         */
+        private fun scanChunks(file: RandomAccessFile, start: Long, checksum: Boolean): List<ChunkInfo> {
+            val chunks = mutableListOf<ChunkInfo>()
+            val headerSize = if (checksum) CHUNK_HEADER_SIZE else CHUNK_HEADER_SIZE_V2
+            var position = start
+            var resync = false
+            while (position + headerSize <= file.length()) {
+                file.seek(position)
+                val header = readChunkHeader(file, checksum)
+                if (header.type == CHUNK_END && !resync) break
+                val end = position + headerSize + header.length
+                if (header.plausible && end <= file.length()) {
+                    val data = ByteArray(header.length)
+                    file.readFully(data)
+                    if (header.verify(data)) {
+                        chunks.add(ChunkInfo(header.kind, header.time, position))
+                        position = end
+                        resync = false
+                        continue
+                    }
+                    if (!resync) {
+                        //chunk头完好，仅数据损坏
+                        position = end
+                        continue
+                    }
+                }
+                if (!checksum) break
+                resync = true
+                position++
+            }
+            return chunks
+        }
+
+        /** 数据包chunk中第一条记录的位置，跳过差分类型列表 */
+        private fun recordStart(type: Int, bs: ByteArray) = if (type and CHUNK_FLAG_DELTA != 0) 1 + (bs[0].toInt() and 0xFF) else 0
+
+        private fun parseInfos(chunk: ByteArray, start: Int): List<PacketInfo> = buildList {
+            val input = DataInputStream(ByteArrayInputStream(chunk, start, chunk.size - start))
+            while (input.available() > 0) {
+                val info = PacketInfo(input.readFloat(), input.readByte(), input.readVarShort())
+                input.skipFully(info.length.toLong())
+                add(info)
+            }
+        }
+
+        private fun DataInputStream.readVarShort(): Int {
+            val high = readUnsignedShort()
+            return if (high and 0x8000 != 0) {
+                val low = readUnsignedShort()
+                ((high and 0x7FFF) shl 16) + low
+            } else {
+                high
+            }
+        }
+
+        /** 录制正常结束(有文件尾)，v1格式总是完整的 */
+        @JvmStatic
+        fun isComplete(fi: Fi): Boolean = Reader(fi).use { it.complete }
+
+        /**
+         * 修复录制中断或损坏的文件：保留所有能通过校验的chunk，重建数据包索引与文件尾，并以v3格式写回原文件。
+         * @return 恢复的chunk数；文件完整时不做修改，返回-1
+         */
+        @JvmStatic
+        @Throws(IOException::class)
+        fun repair(fi: Fi): Int {
+            val tmp = fi.sibling(fi.name() + ".tmp")
+            val count = try {
+                repairTo(fi, tmp)
+            } catch (e: Throwable) {
+                tmp.delete()
+                throw e
+            }
+            if (count < 0) return -1
+            Files.move(tmp.file().toPath(), fi.file().toPath(), StandardCopyOption.REPLACE_EXISTING)
+            return count
+        }
+
+        private fun repairTo(fi: Fi, tmp: Fi): Int {
+            return Reader(fi).use { reader ->
+                if (reader.complete) return -1
+                val checksum = reader.formatVersion >= 3
+                val infos = mutableListOf<PacketInfo>()
+                var duration = 0f
+                var count = 0
+                RandomAccessFile(fi.file(), "r").use { file ->
+                    ChunkOutput(tmp.write(false, 32768)).use { out ->
+                        out.writeHeader(reader.meta)
+                        for (chunk in reader.chunks) {
+                            if (chunk.type == CHUNK_INDEX) continue
+                            val (header, data) = readChunkAt(file, chunk.position, checksum) ?: continue
+                            if (header.kind == CHUNK_PACKETS) {
+                                //v2没有校验和，以能否解码作为判断
+                                infos += try {
+                                    val bs = decode(header.codec, data, header.rawLength)
+                                    parseInfos(bs, recordStart(header.type, bs))
+                                } catch (e: Exception) {
+                                    continue
+                                }
+                            }
+                            out.writeChunk(header.type and 0xF, header.codec, header.time, header.rawLength, data, data.size)
+                            duration = maxOf(duration, header.time)
+                            count++
+                        }
+                        val index = PacketIndex.of(infos)
+                        val raw = index.toBytes()
+                        val compressed = ByteArrayOutputStream().also { DeflaterOutputStream(it).use { d -> d.write(raw) } }.toByteArray()
+                        duration = maxOf(duration, index.duration)
+                        out.writeChunk(CHUNK_INDEX, CODEC_DEFLATE, duration, raw.size, compressed, compressed.size)
+                        out.finish(duration)
+                    }
+                }
+                count
+            }
+        }
+
+        private fun String.utf8Length(): Int {
+            val bs = ByteArrayOutputStream()
+            DataOutputStream(bs).writeUTF(this)
+            return bs.size() - 2
+        }
+    }
+
+    /**
+     * v3格式(.mrep):
+     * MAGIC, FORMAT_VERSION, 头信息(不压缩)
+     * 若干chunk: type(byte, 低4位类型，高4位编码), time(float), rawLength(int), length(int), crc(int, data的CRC32), data
+     *   每个chunk写完即推送到系统，录制中断时所有完整的chunk都能读取，见[repair]
+     *   - [CHUNK_PACKETS]: 独立压缩(deflate或LZ4)的数据包记录(格式同v1)
+     *     带[CHUNK_FLAG_DELTA]时，开头为差分类型列表(count(byte), id*)，这些类型的数据与同chunk中上一个同类型数据逐字节XOR
+     *   - [CHUNK_KEYFRAME]: 完整世界快照，即WorldStream的内容(总是deflate)
+     *   - [CHUNK_INDEX]: 数据包索引，录制结束时写入，见[PacketIndex]
+     * [CHUNK_END], 总时长(float), chunk表(count, (type, time, position)*), 索引位置(long), MAGIC
+     * v2格式与之相同，只是chunk头没有crc
+     *
+     * 调用线程只负责序列化数据包并复制到环形缓冲区，压缩与写盘在单独的线程进行。
+     * 缓冲区满时丢弃普通数据包(计入[droppedPackets])；Streamable与关键帧不会丢弃，改为单独分配内存排队。
+     */
+    class Writer @JvmOverloads constructor(
+        outputStream: OutputStream,
+        private val codec: Int = CODEC_DEFLATE,
+        /** 对快照类数据包做差分编码 */
+        delta: Boolean = false,
+    ) : Closeable {
+        //调用线程
         private val startTime = Time.time
         private val tmpBuf: ByteBuffer = ByteBuffer.allocate(32768)
         private val tmpWr: Writes = Writes(ByteBufferOutput(tmpBuf))
+        private val recordHead = ByteBuffer.allocate(RECORD_HEADER_SIZE)
+        private var streamBuf = ByteArray(32768)
+        private val ring = RingBuffer(RING_SIZE)
+        private val external = ConcurrentLinkedQueue<ByteArray>()
+
+        /** 当前录制时间，单位tick */
+        val offset get() = Time.time - startTime
+
+        /** 因缓冲区满而丢弃的快照 */
+        var droppedPackets = 0
+            private set
+        var droppedBytes = 0L
+            private set
+
+        /** 等待写入的字节数 */
+        val pendingBytes get() = ring.size
+
+        //写入线程
+        private val out = ChunkOutput(outputStream)
+        private val chunkBuf = Bytes(CHUNK_SIZE + 1024)
+        private val writes = DataOutputStream(chunkBuf)
+        private val compressBuf = Bytes(CHUNK_SIZE)
+        private var lz4Buf = ByteArray(0)
+        private val deflater = Deflater()
+        private var chunkTime = 0f
+        private var chunkStart = 0L
+        private var lastTime = 0f
+        private val indexBuf = Bytes(4096)
+        private val indexDeflater = Deflater()
+        private val indexOut = DataOutputStream(DeflaterOutputStream(indexBuf, indexDeflater, 8192))
+        private var packetCount = 0
+        private val typeCount = IntArray(256)
+        private val typeBytes = LongArray(256)
+        private val readBuf = ByteArray(RING_SIZE / 4)
+        private val snapshotIds = snapshotPacketIds()
+        private val deltaIds = if (delta) snapshotIds else ByteArray(0)
+        /** 缓冲区满时可以丢弃的数据包：快照会被之后的同类快照取代，其余数据包改变游戏状态，丢失后无法同步 */
+        private val droppable = BooleanArray(256).also { for (id in snapshotIds) it[id.toInt() and 0xFF] = true }
+        private val isDelta = BooleanArray(256).also { for (id in deltaIds) it[id.toInt() and 0xFF] = true }
+        private val packetChunkType = if (delta) CHUNK_PACKETS or CHUNK_FLAG_DELTA else CHUNK_PACKETS
+        private val deltaPrev = arrayOfNulls<ByteArray>(256)
+        private val deltaPrevLength = IntArray(256)
+        private var deltaBuf = ByteArray(0)
+
+        @Volatile
+        private var closed = false
+
+        @Volatile
+        private var error: Throwable? = null
+        private val thread = Threads.daemon("Replay Writer") { drain() }
 
         fun writeHeader(meta: ReplayData) {
-            writes.writeInt(meta.version)
-            writes.writeLong(meta.time.time)
-            writes.writeUTF(meta.serverIp)
-            writes.writeUTF(meta.recordPlayer)
+            //在写入任何数据包前调用，此时写入线程空闲
+            out.writeHeader(meta)
         }
 
         fun writePacket(packet: Packet) {
-            val id = Net.getPacketId(packet).toUInt()
-            writes.writeFloat(Time.time - startTime)
-            writes.writeByte(id.toInt())
-
+            error?.let { throw IOException("Replay writer failed", it) }
+            val id = Net.getPacketId(packet)
             if (packet is Streamable) packet.stream.apply {
-                mark(available())
-                writes.writeVarShort(available())
-                copyTo(writes)
+                val length = available()
+                if (streamBuf.size < length) streamBuf = ByteArray(length)
+                mark(length)
+                read(streamBuf, 0, length)
                 reset()
+                //Streamable(如WorldStream)不可丢弃
+                pushRecord(KIND_PACKET, id, offset, streamBuf, 0, length, true)
             } else {
                 tmpBuf.position(0)
-                val oldNet = Vars.net
+                writePacketData(packet, tmpWr)
+                pushRecord(KIND_PACKET, id, offset, tmpBuf.array(), 0, tmpBuf.position(), !droppable[id.toInt() and 0xFF])
+            }
+        }
+
+        /** 以指定的录制时间写入已序列化的数据包，缓冲区满时等待而不是丢弃，用于导出[InstantReplay] */
+        fun writeRecord(time: Float, id: Byte, data: ByteArray, off: Int, length: Int) {
+            error?.let { throw IOException("Replay writer failed", it) }
+            pushRecord(KIND_PACKET, id, time, data, off, length, true, true)
+        }
+
+        /** @param worldData 未压缩的[mindustry.net.NetworkIO.writeWorld]，在写入线程压缩为WorldStream的格式 */
+        fun writeKeyframe(worldData: ByteArray) {
+            error?.let { throw IOException("Replay writer failed", it) }
+            pushRecord(KIND_KEYFRAME, 0, offset, worldData, 0, worldData.size, true)
+        }
+
+        /** @param wait 缓冲区满时等待写入线程，而不是丢弃或单独分配内存 */
+        private fun pushRecord(type: Int, id: Byte, time: Float, data: ByteArray, off: Int, length: Int, critical: Boolean, wait: Boolean = false) {
+            var kind = type
+            val fits = type == KIND_PACKET && length <= RING_SIZE / 4
+            if (fits && wait) awaitFree(RECORD_HEADER_SIZE + length)
+            val inline = fits && ring.free() >= RECORD_HEADER_SIZE + length
+            if (!inline) {
+                if (!critical) {
+                    droppedPackets++
+                    droppedBytes += length
+                    return
+                }
+                external.add(if (type == KIND_KEYFRAME) data else data.copyOfRange(off, off + length))
+                kind = kind or KIND_EXTERNAL
+                //关键记录只需要在环中占用头部，几乎不会等待
+                awaitFree(RECORD_HEADER_SIZE)
+            }
+            recordHead.clear()
+            recordHead.put(kind.toByte()).put(id).putFloat(time).putInt(length)
+            ring.put(0, recordHead.array(), 0, RECORD_HEADER_SIZE)
+            if (inline) ring.put(RECORD_HEADER_SIZE, data, off, length)
+            ring.publish(RECORD_HEADER_SIZE + if (inline) length else 0)
+        }
+
+        private fun awaitFree(size: Int) {
+            while (ring.free() < size) {
+                error?.let { throw IOException("Replay writer failed", it) }
+                LockSupport.parkNanos(100_000)
+            }
+        }
+
+        private fun drain() {
+            try {
+                val head = ByteBuffer.allocate(RECORD_HEADER_SIZE)
+                while (true) {
+                    val done = closed
+                    //数据包较少时chunk迟迟不满，定时写盘
+                    if (chunkBuf.size() > 0 && System.nanoTime() - chunkStart > FLUSH_INTERVAL) flushChunk()
+                    if (ring.size == 0) {
+                        if (done) break
+                        LockSupport.parkNanos(2_000_000)
+                        continue
+                    }
+                    ring.get(0, head.array(), 0, RECORD_HEADER_SIZE)
+                    head.clear()
+                    val kind = head.get().toInt()
+                    val id = head.get()
+                    val time = head.getFloat()
+                    val length = head.getInt()
+                    lastTime = time
+                    val data: ByteArray
+                    if (kind and KIND_EXTERNAL != 0) {
+                        data = external.poll()
+                        ring.release(RECORD_HEADER_SIZE)
+                    } else {
+                        data = readBuf
+                        ring.get(RECORD_HEADER_SIZE, data, 0, length)
+                        ring.release(RECORD_HEADER_SIZE + length)
+                    }
+                    if (kind and KIND_EXTERNAL.inv() == KIND_KEYFRAME) {
+                        writeKeyframeChunk(time, data)
+                    } else {
+                        if (chunkBuf.size() == 0) startChunk(time)
+                        writes.writeFloat(time)
+                        writes.writeByte(id.toInt())
+                        writes.writeVarShort(length)
+                        writeData(id, data, length)
+                        if (chunkBuf.size() >= CHUNK_SIZE) flushChunk()
+                        indexOut.writeFloat(time)
+                        indexOut.writeByte(id.toInt())
+                        indexOut.writeInt(length)
+                        packetCount++
+                        typeCount[id.toInt() and 0xFF]++
+                        typeBytes[id.toInt() and 0xFF] += length.toLong()
+                    }
+                }
+                finish()
+            } catch (e: Throwable) {
+                error = e
+                Log.err("Replay writer failed", e)
                 try {
-                    Vars.net = FakeServer
-                    packet.write(tmpWr)
-                } finally {
-                    Vars.net = oldNet
+                    out.close()
+                } catch (_: IOException) {
                 }
-                writes.writeVarShort(tmpBuf.position())
-                writes.write(tmpBuf.array(), 0, tmpBuf.position())
+            } finally {
+                deflater.end()
+                indexDeflater.end()
             }
         }
 
+        private fun startChunk(time: Float) {
+            chunkTime = time
+            chunkStart = System.nanoTime()
+            if (packetChunkType and CHUNK_FLAG_DELTA == 0) return
+            //差分不跨chunk，保证每个chunk能独立解码
+            deltaPrev.fill(null)
+            writes.writeByte(deltaIds.size)
+            writes.write(deltaIds)
+        }
+
+        private fun writeData(id: Byte, data: ByteArray, length: Int) {
+            val i = id.toInt() and 0xFF
+            if (!isDelta[i]) {
+                writes.write(data, 0, length)
+                return
+            }
+            val prev = deltaPrev[i]
+            if (prev == null) {
+                writes.write(data, 0, length)
+            } else {
+                if (deltaBuf.size < length) deltaBuf = ByteArray(length)
+                xorDelta(data, prev, deltaPrevLength[i], deltaBuf, length)
+                writes.write(deltaBuf, 0, length)
+            }
+            val copy = if (prev != null && prev.size >= length) prev else ByteArray(length)
+            System.arraycopy(data, 0, copy, 0, length)
+            deltaPrev[i] = copy
+            deltaPrevLength[i] = length
+        }
+
+        private fun writeKeyframeChunk(time: Float, worldData: ByteArray) {
+            flushChunk()
+            //WorldStream的格式，只能使用deflate
+            val length = deflate(worldData, worldData.size)
+            out.writeChunk(CHUNK_KEYFRAME, CODEC_DEFLATE, time, worldData.size, compressBuf.array(), length)
+        }
+
+        private fun flushChunk() {
+            if (chunkBuf.size() == 0) return
+            if (codec == CODEC_LZ4) {
+                val compressor = lz4.fastCompressor()
+                val max = compressor.maxCompressedLength(chunkBuf.size())
+                if (lz4Buf.size < max) lz4Buf = ByteArray(max)
+                val length = compressor.compress(chunkBuf.array(), 0, chunkBuf.size(), lz4Buf, 0, max)
+                out.writeChunk(packetChunkType, CODEC_LZ4, chunkTime, chunkBuf.size(), lz4Buf, length)
+            } else {
+                val length = deflate(chunkBuf.array(), chunkBuf.size())
+                out.writeChunk(packetChunkType, CODEC_DEFLATE, chunkTime, chunkBuf.size(), compressBuf.array(), length)
+            }
+            chunkBuf.reset()
+        }
+
+        private fun deflate(data: ByteArray, length: Int): Int {
+            compressBuf.reset()
+            deflater.reset()
+            DeflaterOutputStream(compressBuf, deflater).apply {
+                write(data, 0, length)
+                finish()
+            }
+            return compressBuf.size()
+        }
+
+        private fun writeIndexChunk() {
+            var types = 0
+            for (id in 0 until 256) {
+                if (typeCount[id] == 0) continue
+                indexOut.writeByte(id)
+                indexOut.writeInt(typeCount[id])
+                indexOut.writeLong(typeBytes[id])
+                types++
+            }
+            indexOut.writeInt(types)
+            indexOut.writeInt(packetCount)
+            indexOut.close()
+            val rawLength = packetCount * PacketIndex.ENTRY_SIZE + types * PacketIndex.TYPE_SIZE + 8
+            out.writeChunk(CHUNK_INDEX, CODEC_DEFLATE, lastTime, rawLength, indexBuf.array(), indexBuf.size())
+        }
+
+        private fun finish() {
+            flushChunk()
+            writeIndexChunk()
+            out.finish(lastTime)
+        }
+
+        /** [close]时写入线程未能及时结束，文件尾可能缺失 */
+        var timedOut = false
+            private set
+
         override fun close() {
-            writes.close()
+            closed = true
+            LockSupport.unpark(thread)
+            thread.join(10_000)
+            if (thread.isAlive) {
+                timedOut = true
+                Log.warn("Replay writer did not finish in 10s, the file will miss its footer until repaired")
+            }
         }
 
+        /** 等待写入线程结束 */
+        @Throws(InterruptedException::class)
+        fun awaitClose() = thread.join()
+
         private fun DataOutputStream.writeVarShort(value: Int) {
             if (value > Short.MAX_VALUE) {
                 writeInt((1 shl 31) or value)
@@ -75,28 +591,197 @@ data class ReplayData(
         }
     }
 
-    class Reader(inputStream: InputStream) : Closeable {
-        val reads = DataInputStream(InflaterInputStream(inputStream))
-        val meta = readHeader()
-        var source: Fi? = null
+    /** chunk与文件尾的写入，录制与[repair]共用 */
+    private class ChunkOutput(outputStream: OutputStream) : Closeable {
+        private val out = DataOutputStream(outputStream)
+        private val crc = CRC32()
+        private val chunks = mutableListOf<ChunkInfo>()
+        private var position = 0L
 
-        constructor(fi: Fi) : this(fi.read(32768)) {
-            source = fi
+        fun writeHeader(meta: ReplayData) {
+            out.writeInt(MAGIC)
+            out.writeInt(FORMAT_VERSION)
+            out.writeInt(meta.version)
+            out.writeLong(meta.time.time)
+            out.writeUTF(meta.serverIp)
+            out.writeUTF(meta.recordPlayer)
+            position = out.size().toLong()
+        }
+
+        fun writeChunk(type: Int, codec: Int, time: Float, rawLength: Int, data: ByteArray, length: Int) {
+            chunks.add(ChunkInfo(type and CHUNK_TYPE_MASK, time, position))
+            crc.reset()
+            crc.update(data, 0, length)
+            out.writeByte(type or (codec shl 4))
+            out.writeFloat(time)
+            out.writeInt(rawLength)
+            out.writeInt(length)
+            out.writeInt(crc.value.toInt())
+            out.write(data, 0, length)
+            position += CHUNK_HEADER_SIZE + length
+            //每个chunk完整写入后推送到系统，进程崩溃只会丢失未完成的chunk
+            out.flush()
+        }
+
+        fun finish(duration: Float) {
+            val indexPosition = position
+            out.writeByte(CHUNK_END)
+            out.writeFloat(duration)
+            out.writeInt(chunks.size)
+            for (chunk in chunks) {
+                out.writeByte(chunk.type)
+                out.writeFloat(chunk.time)
+                out.writeLong(chunk.position)
+            }
+            out.writeLong(indexPosition)
+            out.writeInt(MAGIC)
+            out.close()
+        }
+
+        override fun close() {
+            out.close()
+        }
+    }
+
+    /** 读取时的chunk头 */
+    private class ChunkHeader(val type: Int, val time: Float, val rawLength: Int, val length: Int, private val crc: Long) {
+        val kind get() = type and CHUNK_TYPE_MASK
+        val codec get() = type shr 4
+
+        /** 不读取数据就能排除的损坏；长度为0的chunk不会被写入，可以排除全零的区域 */
+        val plausible
+            get() = type >= 0 && kind <= CHUNK_INDEX && codec <= CODEC_LZ4 &&
+                    rawLength in 1..MAX_CHUNK_LENGTH && length in 1..MAX_CHUNK_LENGTH
+
+        /** v2格式没有校验和，总是通过 */
+        fun verify(data: ByteArray) = crc < 0 || crc == CRC32().apply { update(data, 0, length) }.value
+    }
+
+    /** 单生产者单消费者的字节环形缓冲区 */
+    private class RingBuffer(val capacity: Int) {
+        private val data = ByteArray(capacity)
+
+        @Volatile
+        private var head = 0L
+
+        @Volatile
+        private var tail = 0L
+
+        val size get() = (head - tail).toInt()
+        fun free() = capacity - size
+
+        /** 生产者：写入head之后[offset]处，[publish]后对消费者可见 */
+        fun put(offset: Int, src: ByteArray, off: Int, len: Int) {
+            val start = ((head + offset) % capacity).toInt()
+            val first = minOf(len, capacity - start)
+            System.arraycopy(src, off, data, start, first)
+            System.arraycopy(src, off + first, data, 0, len - first)
+        }
+
+        fun publish(len: Int) {
+            head += len
+        }
+
+        /** 消费者：读取tail之后[offset]处，[release]后释放空间 */
+        fun get(offset: Int, dst: ByteArray, off: Int, len: Int) {
+            val start = ((tail + offset) % capacity).toInt()
+            val first = minOf(len, capacity - start)
+            System.arraycopy(data, start, dst, off, first)
+            System.arraycopy(data, 0, dst, off + first, len - first)
+        }
+
+        fun release(len: Int) {
+            tail += len
         }
+    }
+
+    private class Bytes(size: Int) : ByteArrayOutputStream(size) {
+        fun array(): ByteArray = buf
+    }
 
+    /** 兼容v1格式(整体deflate)与v2格式(分块+关键帧)，仅v2支持快速跳转 */
+    class Reader private constructor(inputStream: InputStream, val source: Fi?) : Closeable {
+        constructor(inputStream: InputStream) : this(inputStream, null)
+        constructor(fi: Fi) : this(fi.read(32768), fi)
+
+        private var raw: DataInputStream = openRaw(inputStream)
+        val formatVersion: Int
+        val meta: ReplayData
+
+        init {
+            raw.mark(4)
+            if (raw.readInt() == MAGIC) {
+                formatVersion = raw.readInt()
+                if (formatVersion > FORMAT_VERSION) throw IOException("Unsupported replay format: $formatVersion")
+            } else {
+                raw.reset()
+                formatVersion = 1
+                raw = DataInputStream(InflaterInputStream(raw))
+            }
+            meta = readHeader(raw)
+        }
+
+        private val chunked = formatVersion >= 2
+        private val checksum = formatVersion >= 3
         private val arcOldFormat = meta.version <= 10
-        private val readsWrap = Reads(reads)
+        private var reads: DataInputStream = if (chunked) EMPTY else raw
+        private var readsWrap = Reads(reads)
+
+        /** 第一个chunk的位置，仅v2有效 */
+        private val dataStart = CHUNK_DATA_START + meta.serverIp.utf8Length() + meta.recordPlayer.utf8Length()
+
+        private val index: Index by lazy {
+            if (!chunked || source == null) Index(emptyList(), -1f, true) else readIndex(source)
+        }
 
-        private fun readHeader(): ReplayData {
-            val version = reads.readInt()
-            val time = Date(reads.readLong())
-            val serverIp = reads.readUTF()
-            val recordPlayer = reads.readUTF()
+        /** 录制正常结束，文件尾完整；否则chunk表由扫描得到 */
+        val complete get() = index.complete
+
+        /** chunk表，需要文件来源；录制中断时由chunk头重建 */
+        val chunks get() = index.chunks
+
+        /** 关键帧索引 */
+        val keyframes by lazy { chunks.filter { it.type == CHUNK_KEYFRAME }.map { Keyframe(it.time, it.position) } }
+
+        /** 回放总时长，单位tick，未知时为-1 */
+        val duration get() = index.duration
+
+        private fun readHeader(input: DataInput): ReplayData {
+            val version = input.readInt()
+            val time = Date(input.readLong())
+            val serverIp = input.readUTF()
+            val recordPlayer = input.readUTF()
             return ReplayData(version, time, serverIp, recordPlayer)
         }
 
+        /** 切换到下一个数据包chunk，跳过关键帧 */
+        @Throws(EOFException::class)
+        private fun nextChunk() {
+            while (true) {
+                val header = readChunkHeader(raw, checksum)
+                //chunk头损坏时无法定位后续的chunk，按结束处理，剩余部分需要repair
+                if (header.type == CHUNK_END || !header.plausible) throw EOFException()
+                if (header.kind != CHUNK_PACKETS) {
+                    raw.skipFully(header.length.toLong())
+                    continue
+                }
+                val data = ByteArray(header.length)
+                raw.readFully(data)
+                if (!header.verify(data)) {
+                    Log.warn("Replay: skip corrupted chunk at @", header.time)
+                    continue
+                }
+                val bs = decode(header.codec, data, header.rawLength)
+                val start = if (header.type and CHUNK_FLAG_DELTA != 0) restoreDelta(bs) else 0
+                reads = DataInputStream(ByteArrayInputStream(bs, start, bs.size - start))
+                readsWrap = Reads(reads)
+                return
+            }
+        }
+
         @Throws(EOFException::class)
         fun nextPacket(): PacketInfo {
+            if (chunked && reads.available() == 0) nextChunk()
             val offset = if (!arcOldFormat) {
                 reads.readFloat()
             } else {
@@ -120,33 +805,206 @@ data class ReplayData(
             return p
         }
 
-        fun allPacket(): List<PacketInfo> = buildList {
-            while (true) {
-                try {
-                    val info = nextPacket()
-                    reads.skip(info.length.toLong())
-                    add(info)
-                } catch (e: EOFException) {
-                    break
+        /** 跳过数据包内容，不解码 */
+        @Throws(IOException::class)
+        fun skipPacket(info: PacketInfo) {
+            reads.skipFully(info.length.toLong())
+        }
+
+        /** 读取录制时写入的数据包索引，缺失时(v1格式或录制中断)由[allPacket]构建 */
+        fun packetIndex(): PacketIndex {
+            val chunk = chunks.lastOrNull { it.type == CHUNK_INDEX }
+            if (chunk != null) RandomAccessFile(source!!.file(), "r").use { file ->
+                val (header, data) = readChunkAt(file, chunk.position, checksum) ?: return@use
+                return PacketIndex.parse(decode(header.codec, data, header.rawLength))
+            }
+            return PacketIndex.of(allPacket())
+        }
+
+        /** 读取剩余的所有数据包信息；有chunk表时从头读取，并在多个线程上解压 */
+        fun allPacket(): List<PacketInfo> {
+            if (chunked && source != null && chunks.isNotEmpty()) return allPacketParallel(source)
+            return buildList {
+                while (true) {
+                    try {
+                        val info = nextPacket()
+                        skipPacket(info)
+                        add(info)
+                    } catch (e: EOFException) {
+                        break
+                    }
                 }
             }
         }
 
+        private fun allPacketParallel(source: Fi): List<PacketInfo> {
+            val result = mutableListOf<PacketInfo>()
+            val packetChunks = chunks.filter { it.type == CHUNK_PACKETS }
+            RandomAccessFile(source.file(), "r").use { file ->
+                //分批读入，避免一次载入整个文件
+                for (batch in packetChunks.chunked(PARALLEL_BATCH)) {
+                    //校验失败的chunk直接跳过
+                    val raws = batch.mapNotNull { chunk -> readChunkAt(file, chunk.position, checksum) }
+                    raws.parallelStream().map { (header, data) ->
+                        //只需要数据包头，不需要还原差分
+                        val bs = decode(header.codec, data, header.rawLength)
+                        parseInfos(bs, recordStart(header.type, bs))
+                    }.collect(Collectors.toList()).forEach { result.addAll(it) }
+                }
+            }
+            return result
+        }
+
+        /**
+         * 跳转到[time]前最近的关键帧，之后[nextPacket]从关键帧处继续读取。
+         * @return 关键帧对应的WorldStream；没有可用关键帧时返回null，此时从头开始读取
+         */
+        @Throws(IOException::class)
+        fun seek(time: Float): Packet? {
+            val source = source ?: throw IllegalStateException("Seek requires a file source")
+            val keyframe = keyframes.lastOrNull { it.offset <= time }
+            raw.close()
+            reads = EMPTY
+            raw = openRaw(source.read(32768))
+            if (!chunked) {
+                raw = DataInputStream(InflaterInputStream(raw))
+                readHeader(raw)
+                reads = raw
+                readsWrap = Reads(reads)
+                return null
+            }
+            raw.skipFully(keyframe?.position ?: dataStart)
+            if (keyframe == null) return null
+            val header = readChunkHeader(raw, checksum)
+            if (header.codec != CODEC_DEFLATE) throw IOException("Keyframe must be deflate")
+            val data = ByteArray(header.length)
+            raw.readFully(data)
+            if (!header.verify(data)) throw IOException("Keyframe corrupted")
+            return WorldStream().apply { stream = ByteArrayInputStream(data) }
+        }
+
+        private fun readIndex(source: Fi): Index = RandomAccessFile(source.file(), "r").use { file ->
+            if (file.length() >= dataStart + FOOTER_SIZE) {
+                file.seek(file.length() - FOOTER_SIZE)
+                val indexPosition = file.readLong()
+                if (file.readInt() == MAGIC && indexPosition in dataStart until file.length()) {
+                    file.seek(indexPosition + 1)
+                    val duration = file.readFloat()
+                    return@use Index(List(file.readInt()) { ChunkInfo(file.readByte().toInt(), file.readFloat(), file.readLong()) }, duration, true)
+                }
+            }
+            //文件尾缺失(录制中断)，扫描chunk
+            val chunks = scanChunks(file, dataStart, checksum)
+            Index(chunks, chunks.maxOfOrNull { it.time } ?: -1f, false)
+        }
+
+        private class Index(val chunks: List<ChunkInfo>, val duration: Float, val complete: Boolean)
+
         override fun close() {
-            reads.close()
+            raw.close()
         }
 
-        private fun DataInputStream.readVarShort(): Int {
-            val high = readUnsignedShort()
-            return if (high and 0x8000 != 0) {
-                val low = readUnsignedByte()
-                ((high and 0x7FFF) shl 16) + low
-            } else {
-                high
+        /** 原地还原差分编码，返回记录开始的位置 */
+        private fun restoreDelta(bs: ByteArray): Int {
+            val buf = ByteBuffer.wrap(bs)
+            val deltaIds = BooleanArray(256)
+            repeat(buf.get().toInt() and 0xFF) { deltaIds[buf.get().toInt() and 0xFF] = true }
+            val start = buf.position()
+            val prevOffset = IntArray(256) { -1 }
+            val prevLength = IntArray(256)
+            while (buf.hasRemaining()) {
+                buf.getFloat()
+                val id = buf.get().toInt() and 0xFF
+                val high = buf.getShort().toInt() and 0xFFFF
+                val length = if (high and 0x8000 != 0) ((high and 0x7FFF) shl 16) + (buf.getShort().toInt() and 0xFFFF) else high
+                val offset = buf.position()
+                if (deltaIds[id]) {
+                    if (prevOffset[id] >= 0) xorDelta(bs, offset, bs, prevOffset[id], prevLength[id], length)
+                    prevOffset[id] = offset
+                    prevLength[id] = length
+                }
+                buf.position(offset + length)
+            }
+            return start
+        }
+    }
+
+    /**
+     * 紧凑的数据包索引：每个数据包(time, id, length)，以及每种数据包的总数与总字节数。
+     * 编码: [ENTRY_SIZE]*size, [TYPE_SIZE]*types, types(int), size(int)
+     */
+    class PacketIndex private constructor(private val data: ByteBuffer, val size: Int, val types: List<TypeTotal>) {
+        operator fun get(i: Int): PacketInfo {
+            val pos = i * ENTRY_SIZE
+            return PacketInfo(data.getFloat(pos), data.get(pos + 4), data.getInt(pos + 5))
+        }
+
+        fun offset(i: Int): Float = data.getFloat(i * ENTRY_SIZE)
+        fun id(i: Int): Byte = data.get(i * ENTRY_SIZE + 4)
+        fun length(i: Int): Int = data.getInt(i * ENTRY_SIZE + 5)
+
+        /** 最后一个数据包的时间，单位tick */
+        val duration get() = if (size == 0) 0f else offset(size - 1)
+
+        /** 编码为[parse]的格式 */
+        fun toBytes(): ByteArray {
+            val out = ByteBuffer.allocate(size * ENTRY_SIZE + types.size * TYPE_SIZE + 8)
+            out.put(data.array(), data.arrayOffset(), size * ENTRY_SIZE)
+            for (type in types) out.put(type.id).putInt(type.count).putLong(type.bytes)
+            out.putInt(types.size).putInt(size)
+            return out.array()
+        }
+
+        companion object {
+            const val ENTRY_SIZE = 4 + 1 + 4
+            const val TYPE_SIZE = 1 + 4 + 8
+
+            fun parse(bytes: ByteArray): PacketIndex {
+                val data = ByteBuffer.wrap(bytes)
+                val size = data.getInt(bytes.size - 4)
+                val typeNum = data.getInt(bytes.size - 8)
+                data.position(size * ENTRY_SIZE)
+                val types = List(typeNum) { TypeTotal(data.get(), data.getInt(), data.getLong()) }
+                return PacketIndex(data, size, types)
+            }
+
+            fun of(packets: List<PacketInfo>): PacketIndex {
+                val data = ByteBuffer.allocate(packets.size * ENTRY_SIZE)
+                val count = IntArray(256)
+                val bytes = LongArray(256)
+                for (info in packets) {
+                    data.putFloat(info.offset).put(info.id).putInt(info.length)
+                    count[info.id.toInt() and 0xFF]++
+                    bytes[info.id.toInt() and 0xFF] += info.length.toLong()
+                }
+                val types = (0 until 256).filter { count[it] > 0 }.map { TypeTotal(it.toByte(), count[it], bytes[it]) }
+                return PacketIndex(data, packets.size, types)
             }
         }
     }
 
+    data class TypeTotal(
+        val id: Byte,
+        val count: Int,
+        val bytes: Long,
+    )
+
+    data class ChunkInfo(
+        /** [CHUNK_PACKETS], [CHUNK_KEYFRAME]或[CHUNK_INDEX] */
+        val type: Int,
+        /** 第一个数据包或关键帧的录制时间，单位tick */
+        val time: Float,
+        /** chunk在文件中的位置 */
+        val position: Long,
+    )
+
+    data class Keyframe(
+        /** 录制时间，单位tick */
+        val offset: Float,
+        /** chunk在文件中的位置 */
+        val position: Long,
+    )
+
     data class PacketInfo(
         val offset: Float,
         val id: Byte,
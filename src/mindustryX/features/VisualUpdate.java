@@ -0,0 +1,65 @@
+package mindustryX.features;
+
+import arc.struct.*;
+import arc.util.*;
+import mindustry.*;
+import mindustry.gen.*;
+import mindustryX.features.SettingsV2.*;
+
+import java.util.stream.*;
+
+/**
+ * 客户端纯视觉实体(特效、贴花、跳字、标记)的并行更新。
+ * EntityGroup.update遍历时跳过这些实体，遍历结束后并行更新。
+ * 本帧到期的实体需要remove()，仍在遍历中串行更新，因此并行阶段不会修改实体组。
+ */
+public class VisualUpdate{
+    public static final CheckPref enable = new CheckPref("debug.parallelVisualUpdate");
+    /** 少于该数量时串行更新 */
+    private static final int MIN_PARALLEL = 256;
+
+    /**
+     * 可以并行更新的实体。update只能修改自身，不能使用Tmp等共享的临时变量，不能在update中remove(到期移除除外)。
+     * 原版的EffectState与Decal只匹配类本身，子类需要实现该接口。
+     */
+    public interface VisualEntity{
+    }
+
+    /** 本帧是否启用，由{@link #begin()}设置 */
+    public static boolean active;
+    private static final Seq<Entityc> pending = new Seq<>(false, 256, Entityc.class);
+
+    /** 每帧在实体更新前调用一次 */
+    public static void begin(){
+        active = enable.get() && !Vars.headless;
+    }
+
+    /** @return true表示该实体延迟到{@link #run()}更新 */
+    public static boolean defer(Entityc e){
+        Class<?> type = e.getClass();
+        if(type != EffectState.class && type != Decal.class && !(e instanceof VisualEntity)) return false;
+        //本帧到期
+        if(e instanceof Timedc t && t.time() + Time.delta >= t.lifetime()) return false;
+        pending.add(e);
+        return true;
+    }
+
+    /** 在实体组遍历结束后调用 */
+    public static void run(){
+        int size = pending.size;
+        if(size == 0) return;
+        Entityc[] items = pending.items;
+        long start = EntityProfiler.active ? Time.nanos() : 0L;
+        try{
+            if(size < MIN_PARALLEL){
+                for(int i = 0; i < size; i++) items[i].update();
+            }else{
+                IntStream.range(0, size).parallel().forEach(i -> items[i].update());
+            }
+        }finally{
+            pending.clear();
+            //并行更新无法按类型采样，整体计入"visual"
+            if(EntityProfiler.active) EntityProfiler.visualUpdate(size, Time.timeSinceNanos(start));
+        }
+    }
+}
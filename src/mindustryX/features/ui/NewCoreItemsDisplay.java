@@ -2,14 +2,14 @@ package mindustryX.features.ui;
 
 import arc.*;
 import arc.graphics.*;
-import arc.math.*;
+import arc.graphics.g2d.*;
+import arc.scene.*;
 import arc.scene.style.*;
 import arc.scene.ui.*;
 import arc.scene.ui.layout.*;
 import arc.struct.*;
 import arc.util.*;
 import kotlin.collections.*;
-import mindustry.*;
 import mindustry.core.*;
 import mindustry.entities.*;
 import mindustry.game.EventType.*;
@@ -119,22 +119,13 @@ public class NewCoreItemsDisplay extends Table{
 
     private void buildPower(){
         powerTable.update(() -> {
-            balance = 0;
-            stored = 0;
-            capacity = 0;
-            produced = 0;
-            need = 0;
-            Groups.powerGraph.each(item -> {
-                var graph = item.graph();
-                if(graph.all.isEmpty() || graph.all.first().team != Vars.player.team()) return;
-                balance += graph.getPowerBalance();
-                stored += graph.getLastPowerStored();
-                capacity += graph.getLastCapacity();
-                produced += graph.getLastPowerProduced();
-                need += graph.getLastPowerNeeded();
-            });
-            balance *= Time.toSeconds;
-            satisfaction = produced == 0 ? 1 : need == 0 ? 1 : Mathf.clamp(produced / need, 0, 1);
+            var power = PowerStats.get(player.team());
+            balance = power.balancePerSecond();
+            stored = power.stored;
+            capacity = power.capacity;
+            produced = power.produced;
+            need = power.needed;
+            satisfaction = power.satisfaction();
         });
         powerTable.margin(2f).stack(
         new Bar("", Pal.powerBar, () -> capacity == 0 ? (balance > 0 ? 1 : 0) : stored / capacity),
@@ -146,7 +137,31 @@ public class NewCoreItemsDisplay extends Table{
             t.label(() -> Core.bundle.format("bar.powerstored", UI.formatAmount((long)stored), UI.formatAmount((long)capacity)));
             t.add().growX();
         })
-        ).growX();
+        ).growX().row();
+        powerTable.add(new Element(){
+            @Override
+            public void draw(){
+                drawBalanceHistory(PowerStats.get(player.team()), x, y, width, height, parentAlpha);
+            }
+        }).growX().height(12f);
+    }
+
+    /** 最近一分钟的电力平衡曲线，0为中线 */
+    private static void drawBalanceHistory(PowerStats.TeamPower power, float x, float y, float width, float height, float alpha){
+        int size = Math.min(power.historySize, PowerStats.HISTORY);
+        if(size < 2) return;
+        float max = 1f;
+        for(int i = 0; i < size; i++) max = Math.max(max, Math.abs(power.history(power.balanceHistory, i)));
+        float step = width / (PowerStats.HISTORY - 1), mid = y + height / 2f, scale = height / 2f / max;
+        Draw.color(Color.gray, alpha);
+        Lines.stroke(1f);
+        Lines.line(x, mid, x + width, mid);
+        for(int i = 1; i < size; i++){
+            float v1 = power.history(power.balanceHistory, i - 1), v2 = power.history(power.balanceHistory, i);
+            Draw.color(v1 >= 0 ? Pal.powerBar : Color.scarlet, alpha);
+            Lines.line(x + width - (i - 1) * step, mid + v1 * scale, x + width - i * step, mid + v2 * scale);
+        }
+        Draw.reset();
     }
 
     public void sharePowerInfo(){
@@ -86,6 +86,12 @@ public class TeamsStatDisplay extends Table{
         addTeamData(Blocks.coreNucleus.uiIcon, team -> UI.formatAmount(team.cores.size));
         addTeamData(UnitTypes.mono.uiIcon, team -> UI.formatAmount(team.units.size));
         addTeamData(UnitTypes.gamma.uiIcon, team -> String.valueOf(team.players.size));
+        if(teams.contains(team -> PowerStats.get(team.team).graphs > 0)){
+            addTeamData(Blocks.battery.uiIcon, team -> {
+                float balance = PowerStats.get(team.team).balancePerSecond();
+                return (balance >= 0 ? "+" : "") + UI.formatAmount((long)balance);
+            });
+        }
 
         if(showStat){
             image().color(Pal.accent).fillX().height(1).colspan(999).padTop(3).padBottom(3).row();